@@ -0,0 +1,76 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.MessagingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class AttachmentDecoder {
+    private final ExecutorService executor;
+
+    public AttachmentDecoder(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "KIM RX attachment decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public List<Path> decodeAll(List<MailAttachment> attachments, File directory) throws IOException, MessagingException {
+        // Each part reads its own range of the shared raw message, so the transfer encodings
+        // (base64, quoted-printable) can be decoded concurrently into temporary files.
+        List<Future<Path>> futures = new ArrayList<>(attachments.size());
+        for (MailAttachment attachment : attachments) {
+            futures.add(executor.submit(() -> decode(attachment, directory)));
+        }
+
+        List<Path> files = new ArrayList<>(futures.size());
+        Exception failure = null;
+        for (Future<Path> future : futures) {
+            try {
+                files.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) failure = (Exception) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = new IOException("Interrupted while decoding attachments", e);
+            }
+        }
+
+        if (failure != null) {
+            // do not leave partial results behind
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure instanceof MessagingException) throw (MessagingException) failure;
+            throw new RuntimeException(failure);
+        }
+        return files;
+    }
+
+    static Path decode(MailAttachment attachment, File directory) throws IOException, MessagingException {
+        Path file = File.createTempFile("kimrx", ".part", directory).toPath();
+        try (InputStream is = attachment.getInputStream()) {
+            Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,139 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AttachmentDeduplicator {
+    private static final int FILE_MAGIC = 0x4b494d42; // "KIMB"
+    // the exact hashes of the cache are stored next to the filter, one per line from the least recently seen
+    private static final String CACHE_FILE_SUFFIX = ".recent";
+
+    private final Path filter_file;
+    private final Path cache_file;
+    private final int cache_size;
+
+    // exact answers for recently seen hashes
+    private final Map<String, Boolean> recent;
+
+    // Bloom filter over all hashes ever seen, its size only depends on the expected number of entries
+    private final long[] bits;
+    private final long num_bits;
+    private final int num_hashes;
+    private long entries = 0;
+    private boolean dirty = false;
+
+    public AttachmentDeduplicator(Path filter_file, long expected_entries, double false_positive_rate, int cache_size) {
+        this.filter_file = filter_file;
+        this.cache_file = filter_file.resolveSibling(filter_file.getFileName() + CACHE_FILE_SUFFIX);
+        this.cache_size = cache_size;
+        this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > AttachmentDeduplicator.this.cache_size;
+            }
+        };
+
+        // optimal filter size m = -n ln(p) / ln(2)^2 and number of hash functions k = m/n ln(2)
+        long m = (long) Math.ceil(-expected_entries * Math.log(false_positive_rate) / (Math.log(2) * Math.log(2)));
+        this.num_bits = Math.max(64, (m + 63) / 64 * 64);
+        this.num_hashes = Math.max(1, (int) Math.round((double) num_bits / expected_entries * Math.log(2)));
+        if (num_bits / 64 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("A duplicate filter for " + expected_entries + " entries at a false positive rate of "
+                    + false_positive_rate + " exceeds the maximum size");
+        }
+        this.bits = new long[(int) (num_bits / 64)];
+    }
+
+    public synchronized boolean isDuplicate(String sha256_hex) {
+        // only the cache knows the exact hashes, the filter may answer wrongly
+        return recent.containsKey(sha256_hex);
+    }
+
+    public synchronized boolean mightBeDuplicate(String sha256_hex) {
+        if (recent.containsKey(sha256_hex)) return true;
+
+        // the hash is uniformly distributed already, so two of its 64 bit words serve as base hashes
+        long h1 = Long.parseUnsignedLong(sha256_hex.substring(0, 16), 16);
+        long h2 = Long.parseUnsignedLong(sha256_hex.substring(16, 32), 16);
+        for (int i = 0; i < num_hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, num_bits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public synchronized void add(String sha256_hex) {
+        recent.put(sha256_hex, Boolean.TRUE);
+
+        long h1 = Long.parseUnsignedLong(sha256_hex.substring(0, 16), 16);
+        long h2 = Long.parseUnsignedLong(sha256_hex.substring(16, 32), 16);
+        for (int i = 0; i < num_hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, num_bits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        entries++;
+        dirty = true;
+    }
+
+    public synchronized long getEntries() {
+        return entries;
+    }
+
+    public synchronized void load() throws IOException {
+        // the exact answers are restored as well, otherwise every hit after a restart would only be a suspected one
+        if (Files.exists(cache_file)) {
+            for (String sha256_hex : Files.readAllLines(cache_file, StandardCharsets.US_ASCII)) {
+                if (sha256_hex.length() == 64) recent.put(sha256_hex, Boolean.TRUE);
+            }
+        }
+
+        if (!Files.exists(filter_file)) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(filter_file)))) {
+            // a filter with different dimensions cannot be reused, it is replaced with the next save
+            if (in.readInt() != FILE_MAGIC || in.readLong() != num_bits || in.readInt() != num_hashes) return;
+            long stored_entries = in.readLong();
+            long[] stored_bits = new long[bits.length];
+            for (int i = 0; i < stored_bits.length; i++) {
+                stored_bits[i] = in.readLong();
+            }
+            System.arraycopy(stored_bits, 0, bits, 0, bits.length);
+            entries = stored_entries;
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+
+        // write to a temporary file first, so a crash never leaves a truncated filter behind
+        Path tmp_file = filter_file.resolveSibling(filter_file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp_file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(num_bits);
+            out.writeInt(num_hashes);
+            out.writeLong(entries);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(tmp_file, filter_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // the iteration order of the cache is the order of access, so the restored cache evicts the same hashes
+        List<String> cached_hashes = new ArrayList<>(recent.keySet());
+        Path tmp_cache_file = cache_file.resolveSibling(cache_file.getFileName() + ".tmp");
+        Files.write(tmp_cache_file, cached_hashes, StandardCharsets.US_ASCII);
+        Files.move(tmp_cache_file, cache_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
@@ -0,0 +1,286 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ChunkReassembler {
+    // mail headers written by the KIM TX processor for chunked transfers
+    public static final String HEADER_TRANSFER_ID = "X-KIM-Transfer-Id";
+    public static final String HEADER_TRANSFER_SIZE = "X-KIM-Transfer-Size";
+    public static final String HEADER_TRANSFER_SHA256 = "X-KIM-Transfer-SHA256";
+    public static final String HEADER_CHUNK_SEQUENCE = "X-KIM-Chunk-Sequence";
+    public static final String HEADER_CHUNK_COUNT = "X-KIM-Chunk-Count";
+    public static final String HEADER_CHUNK_SHA256 = "X-KIM-Chunk-SHA256";
+
+    private static final String METADATA_FILE = "transfer.properties";
+    private static final String CHUNK_SUFFIX = ".chunk";
+    private static final String ASSEMBLED_FILE = "assembled.bin";
+
+    private final Path directory;
+    private final long timeout_millis;
+
+    // transfers emitted by a session that is not committed yet
+    private final Set<String> pending = new HashSet<>();
+
+    public static class Transfer {
+        private final Path directory;
+        private final Properties metadata;
+        private final int received_chunks;
+
+        private Transfer(Path directory, Properties metadata, int received_chunks) {
+            this.directory = directory;
+            this.metadata = metadata;
+            this.received_chunks = received_chunks;
+        }
+
+        public String getTransferId() {
+            return metadata.getProperty("transfer.id");
+        }
+
+        public String getFileName() {
+            return metadata.getProperty("filename");
+        }
+
+        public String getSubject() {
+            return metadata.getProperty("subject");
+        }
+
+        public String getFrom() {
+            return metadata.getProperty("from");
+        }
+
+        public Date getSentDate() {
+            return new Date(Long.parseLong(metadata.getProperty("sent")));
+        }
+
+        public String getSha256() {
+            return metadata.getProperty("sha256");
+        }
+
+        public int getChunkCount() {
+            return Integer.parseInt(metadata.getProperty("chunk.count"));
+        }
+
+        public int getReceivedChunks() {
+            return received_chunks;
+        }
+
+        public boolean isComplete() {
+            return received_chunks == getChunkCount();
+        }
+
+        public Path getAssembledFile() {
+            return directory.resolve(ASSEMBLED_FILE);
+        }
+    }
+
+    public ChunkReassembler(Path directory, long timeout_millis) {
+        this.directory = directory;
+        this.timeout_millis = timeout_millis;
+    }
+
+    public static boolean isChunk(Message msg) throws MessagingException {
+        // only the headers are accessed, they are retrieved with TOP
+        return msg.getHeader(HEADER_TRANSFER_ID) != null;
+    }
+
+    public synchronized boolean store(MailAttachment attachment) throws MessagingException, IOException {
+        Message msg = attachment.getMessage();
+        String transfer_id = getHeader(msg, HEADER_TRANSFER_ID);
+        int sequence;
+        int chunk_count;
+        long size;
+        try {
+            sequence = Integer.parseInt(getHeader(msg, HEADER_CHUNK_SEQUENCE));
+            chunk_count = Integer.parseInt(getHeader(msg, HEADER_CHUNK_COUNT));
+            size = Long.parseLong(getHeader(msg, HEADER_TRANSFER_SIZE));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String chunk_sha256 = getHeader(msg, HEADER_CHUNK_SHA256);
+        String transfer_sha256 = getHeader(msg, HEADER_TRANSFER_SHA256);
+        if (transfer_id == null || chunk_sha256 == null || transfer_sha256 == null
+                || chunk_count <= 0 || sequence < 0 || sequence >= chunk_count) {
+            // the mail does not describe a chunk completely
+            return false;
+        }
+
+        Path transfer_directory = getDirectory(transfer_id);
+        Files.createDirectories(transfer_directory);
+
+        // every chunk carries the description of the whole transfer, the first one received stores it
+        Path metadata_file = transfer_directory.resolve(METADATA_FILE);
+        Properties metadata;
+        if (Files.exists(metadata_file)) {
+            metadata = readMetadata(transfer_directory);
+            if (!String.valueOf(chunk_count).equals(metadata.getProperty("chunk.count"))
+                    || !transfer_sha256.equals(metadata.getProperty("sha256"))) {
+                // the chunk does not belong to the transfer stored under its id
+                return false;
+            }
+        } else {
+            Address[] from = msg.getFrom();
+            metadata = new Properties();
+            metadata.setProperty("transfer.id", transfer_id);
+            metadata.setProperty("chunk.count", String.valueOf(chunk_count));
+            metadata.setProperty("size", String.valueOf(size));
+            metadata.setProperty("sha256", transfer_sha256);
+            metadata.setProperty("filename", attachment.getFileName() == null ? "data.bin" : attachment.getFileName());
+            metadata.setProperty("subject", msg.getSubject() == null ? "" : msg.getSubject());
+            metadata.setProperty("from", from == null || from.length == 0 ? "" : from[0].toString());
+            // a mail without Date header is dated when it is received
+            Date sent_date = msg.getSentDate();
+            metadata.setProperty("sent", String.valueOf(sent_date == null ? System.currentTimeMillis() : sent_date.getTime()));
+            Path tmp_file = transfer_directory.resolve(METADATA_FILE + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp_file, StandardCharsets.UTF_8)) {
+                metadata.store(writer, null);
+            }
+            Files.move(tmp_file, metadata_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // the chunk is verified while it is written, a corrupted chunk is never mistaken for a received one
+        Path chunk_file = transfer_directory.resolve(String.format("%05d", sequence) + CHUNK_SUFFIX);
+        Path tmp_file = transfer_directory.resolve(chunk_file.getFileName() + ".tmp");
+        MessageDigest digest = newSha256Digest();
+        try (InputStream is = new DigestInputStream(attachment.getInputStream(), digest)) {
+            Files.copy(is, tmp_file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (!chunk_sha256.equalsIgnoreCase(toHex(digest.digest()))) {
+            Files.deleteIfExists(tmp_file);
+            return false;
+        }
+        Files.move(tmp_file, chunk_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // the timeout starts again with every received chunk
+        Files.setLastModifiedTime(transfer_directory, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    public synchronized List<Transfer> collect() throws IOException {
+        // complete transfers and transfers that timed out; both are pending until release is called
+        List<Transfer> transfers = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return transfers;
+
+        List<Path> transfer_directories;
+        try (Stream<Path> stream = Files.list(directory)) {
+            transfer_directories = stream.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+        }
+        long now = System.currentTimeMillis();
+        for (Path transfer_directory : transfer_directories) {
+            String name = transfer_directory.getFileName().toString();
+            if (pending.contains(name)) continue;
+
+            boolean expired = now - Files.getLastModifiedTime(transfer_directory).toMillis() > timeout_millis;
+            if (!Files.exists(transfer_directory.resolve(METADATA_FILE))) {
+                // left over by an interrupted first chunk, there is nothing to report
+                if (expired) deleteDirectory(transfer_directory);
+                continue;
+            }
+
+            Transfer transfer = new Transfer(transfer_directory, readMetadata(transfer_directory), countChunks(transfer_directory));
+            if (transfer.isComplete() || expired) {
+                pending.add(name);
+                transfers.add(transfer);
+            }
+        }
+        return transfers;
+    }
+
+    public boolean assemble(Transfer transfer) throws IOException {
+        // concatenate the chunks in order and verify the checksum of the whole content
+        MessageDigest digest = newSha256Digest();
+        long size = 0;
+        try (OutputStream os = Files.newOutputStream(transfer.getAssembledFile())) {
+            for (int i = 0; i < transfer.getChunkCount(); i++) {
+                Path chunk_file = transfer.directory.resolve(String.format("%05d", i) + CHUNK_SUFFIX);
+                try (InputStream is = new DigestInputStream(Files.newInputStream(chunk_file), digest)) {
+                    size += is.transferTo(os);
+                }
+            }
+        }
+        return size == Long.parseLong(transfer.metadata.getProperty("size"))
+                && transfer.getSha256().equalsIgnoreCase(toHex(digest.digest()));
+    }
+
+    public synchronized void release(Transfer transfer, boolean remove) {
+        // called after the session commit, a failed commit leaves the transfer to be emitted again
+        if (remove) deleteDirectory(transfer.directory);
+        pending.remove(transfer.directory.getFileName().toString());
+    }
+
+    private static void deleteDirectory(Path transfer_directory) {
+        try (Stream<Path> stream = Files.walk(transfer_directory)) {
+            for (Path path : stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static int countChunks(Path transfer_directory) throws IOException {
+        try (Stream<Path> stream = Files.list(transfer_directory)) {
+            return (int) stream.filter(f -> f.getFileName().toString().endsWith(CHUNK_SUFFIX)).count();
+        }
+    }
+
+    private static Properties readMetadata(Path transfer_directory) throws IOException {
+        Properties metadata = new Properties();
+        try (Reader reader = Files.newBufferedReader(transfer_directory.resolve(METADATA_FILE), StandardCharsets.UTF_8)) {
+            metadata.load(reader);
+        }
+        return metadata;
+    }
+
+    private static String getHeader(Message msg, String name) throws MessagingException {
+        String[] values = msg.getHeader(name);
+        return values == null || values.length == 0 ? null : values[0].trim();
+    }
+
+    private Path getDirectory(String transfer_id) {
+        // the transfer id is chosen by the sender, so it is hex encoded for the directory name
+        StringBuilder name = new StringBuilder();
+        for (byte b : transfer_id.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return directory.resolve(name.toString());
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
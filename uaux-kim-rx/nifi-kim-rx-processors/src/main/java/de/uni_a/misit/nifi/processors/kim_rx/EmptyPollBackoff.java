@@ -0,0 +1,36 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+public class EmptyPollBackoff {
+    private final long initial_millis;
+    private final long max_millis;
+
+    // consecutive polls without mails and the earliest time of the next poll
+    private int empty_polls = 0;
+    private long next_poll_millis = 0;
+
+    public EmptyPollBackoff(long initial_millis, long max_millis) {
+        // a maximum of 0 disables the backoff, the mailbox is always polled with the run schedule
+        this.initial_millis = initial_millis;
+        this.max_millis = max_millis;
+    }
+
+    public synchronized boolean isPaused(long now_millis) {
+        return now_millis < next_poll_millis;
+    }
+
+    public synchronized long onEmptyPoll(long now_millis) {
+        if (max_millis <= 0) return 0;
+
+        // doubled with every further empty poll, the shift is bounded so it cannot overflow
+        empty_polls++;
+        long backoff = Math.min(max_millis, initial_millis << Math.min(empty_polls - 1, 30));
+        next_poll_millis = now_millis + backoff;
+        return backoff;
+    }
+
+    public synchronized void reset() {
+        // mails were received, return to the run schedule
+        empty_polls = 0;
+        next_poll_millis = 0;
+    }
+}
@@ -0,0 +1,211 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Authenticator;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import org.apache.nifi.logging.ComponentLog;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class IMAPIdleReceiver implements Runnable {
+    private final Session session;
+    private final String folder_name;
+    private final long reconnect_delay_millis;
+    private final ComponentLog logger;
+
+    // new mails announced by the server, consumed by the processor
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    private volatile IMAPStore store = null;
+    private volatile IMAPFolder folder = null;
+
+    // IMAP UIDs are strictly ascending within a UIDVALIDITY, so the highest processed UID is a sufficient marker
+    private volatile long uid_validity;
+    private volatile long last_uid;
+
+    public IMAPIdleReceiver(String host, int port, String auth_username, String auth_password, boolean allow_insecure_tls,
+                            String folder_name, long uid_validity, long last_uid, long reconnect_delay_millis, ComponentLog logger) {
+        this.folder_name = folder_name;
+        this.uid_validity = uid_validity;
+        this.last_uid = last_uid;
+        this.reconnect_delay_millis = reconnect_delay_millis;
+        this.logger = logger;
+
+        Properties prop = new Properties();
+        prop.setProperty("mail.imaps.host", host);
+        prop.setProperty("mail.imaps.port", String.valueOf(port));
+
+        // set additional flag
+        if (allow_insecure_tls) {
+            prop.setProperty("mail.imaps.ssl.trust", "*");
+        }
+
+        this.session = Session.getInstance(prop, new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(auth_username, auth_password);
+            }
+        });
+    }
+
+    public synchronized void start() {
+        running = true;
+        thread = new Thread(this, "KIM RX IMAP IDLE " + folder_name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        // closing the folder terminates a running IDLE command
+        disconnect();
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(reconnect_delay_millis + 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        queue.clear();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                connect();
+                IMAPStore current_store = store;
+                IMAPFolder current_folder = folder;
+
+                // the server may not support IDLE, in this case the folder is checked periodically
+                boolean idle_supported = current_store != null && current_store.hasCapability("IDLE");
+                while (running && current_folder != null && current_folder.isOpen()) {
+                    if (idle_supported) {
+                        // blocks until the server announces changes, new mails are reported to the listener
+                        current_folder.idle();
+                    } else {
+                        Thread.sleep(reconnect_delay_millis);
+                        current_folder.getMessageCount();
+                    }
+                }
+            } catch (MessagingException e) {
+                if (running) logger.warn("IMAP connection failed, reconnecting", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                disconnect();
+            }
+
+            // wait before reconnecting
+            try {
+                if (running) Thread.sleep(reconnect_delay_millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void connect() throws MessagingException {
+        IMAPStore new_store = (IMAPStore) session.getStore("imaps");
+        new_store.connect();
+        IMAPFolder new_folder = (IMAPFolder) new_store.getFolder(folder_name);
+        new_folder.open(Folder.READ_WRITE);
+
+        // the UIDs are only valid together with the UIDVALIDITY of the folder
+        long current_uid_validity = new_folder.getUIDValidity();
+        if (current_uid_validity != uid_validity) {
+            uid_validity = current_uid_validity;
+            last_uid = 0;
+        }
+
+        // the queued messages of a previous connection cannot be used anymore
+        queue.clear();
+
+        // listen before looking for missed mails, so no mail is lost in between
+        new_folder.addMessageCountListener(new MessageCountAdapter() {
+            @Override
+            public void messagesAdded(MessageCountEvent e) {
+                queue.addAll(Arrays.asList(e.getMessages()));
+            }
+        });
+
+        store = new_store;
+        folder = new_folder;
+
+        // mails which arrived while disconnected
+        queue.addAll(Arrays.asList(new_folder.getMessagesByUID(last_uid + 1, UIDFolder.LASTUID)));
+    }
+
+    private void disconnect() {
+        IMAPFolder old_folder = folder;
+        IMAPStore old_store = store;
+        folder = null;
+        store = null;
+        try {
+            if (old_folder != null && old_folder.isOpen()) old_folder.close(false);
+        } catch (MessagingException ignored) {}
+        try {
+            if (old_store != null) old_store.close();
+        } catch (MessagingException ignored) {}
+    }
+
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    public void drainTo(Collection<Message> messages, int max_messages) {
+        queue.drainTo(messages, max_messages);
+    }
+
+    public void resync() {
+        // Mails of a failed batch are not queued anymore. The queue is filled again with all mails after
+        // the last committed UID, mails queued twice are skipped by the processor.
+        IMAPFolder current_folder = folder;
+        queue.clear();
+        if (current_folder == null) return;
+        try {
+            queue.addAll(Arrays.asList(current_folder.getMessagesByUID(last_uid + 1, UIDFolder.LASTUID)));
+        } catch (MessagingException e) {
+            // the receiver thread reconnects and looks for the missed mails itself
+            logger.warn("Failed to look for unprocessed mails, reconnecting", e);
+            disconnect();
+        }
+    }
+
+    public IMAPFolder getFolder() {
+        return folder;
+    }
+
+    public long getUIDValidity() {
+        return uid_validity;
+    }
+
+    public long getLastUID() {
+        return last_uid;
+    }
+
+    public void setLastUID(long uid) {
+        // only called by the processor after its session has been committed
+        if (uid > last_uid) last_uid = uid;
+    }
+}
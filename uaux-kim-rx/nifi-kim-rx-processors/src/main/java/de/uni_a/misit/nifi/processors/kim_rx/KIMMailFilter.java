@@ -0,0 +1,74 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+
+public class KIMMailFilter {
+    private final String mail_from;
+    private final SubjectTagMatcher tag_matcher;
+    private final Date ignore_until;
+
+    public KIMMailFilter(String mail_from, String mail_tag, Date ignore_until) {
+        this(mail_from, SubjectTagMatcher.forTag(mail_tag, mail_tag), ignore_until);
+    }
+
+    public KIMMailFilter(String mail_from, SubjectTagMatcher tag_matcher, Date ignore_until) {
+        this.mail_from = mail_from;
+        this.tag_matcher = tag_matcher;
+        this.ignore_until = ignore_until;
+    }
+
+    public static void prefetchHeaders(Folder folder, Message[] messages) throws MessagingException {
+        // POP3: loads the headers only (TOP n 0), IMAP: loads envelope and body structure in one command
+        // The message bodies are not retrieved.
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.CONTENT_INFO);
+        folder.fetch(messages, profile);
+    }
+
+    public boolean matchesHeaders(Message msg) throws MessagingException {
+        // Only header fields are accessed here, so the message body is not downloaded
+        if (mail_from != null && !mail_from.isBlank()) {
+            Address[] from = msg.getFrom();
+            if (from == null || from.length == 0 || !from[0].toString().equals(mail_from)) {
+                // mail sender address does not match
+                return false;
+            }
+        }
+
+        String subject = msg.getSubject();
+        if (subject == null || !tag_matcher.matches(subject)) {
+            // tag is not part of the subject line
+            return false;
+        }
+
+        Date sent_date = msg.getSentDate();
+        if (sent_date == null) {
+            // ignore mails without sent date header
+            return false;
+        } else if (ignore_until != null && !sent_date.after(ignore_until)) {
+            // message is older than the provided threshold
+            return false;
+        }
+
+        // attachments are only carried by multipart mails, which can be told from the Content-Type header
+        return msg.isMimeType("multipart/*");
+    }
+
+    public Set<String> matchTags(Message msg) throws MessagingException {
+        return matchTags(msg.getSubject());
+    }
+
+    public Set<String> matchTags(String subject) {
+        // keys of all tags contained in the subject line
+        return subject == null ? Collections.emptySet() : tag_matcher.match(subject);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.*;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static de.uni_a.misit.nifi.processors.kim_rx.KIMRXProcessor.*;
+
+@Tags({"KIM", "Telematik", "KoPS", "IMAP"})
+@CapabilityDescription("Keeps an IMAP connection open (IDLE) and forwards tagged mails as flow files as soon as the server announces them")
+@SeeAlso({KIMRXProcessor.class})
+@TriggerSerially
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@Stateful(scopes = Scope.CLUSTER, description = "The UIDVALIDITY of the IMAP folder and the highest UID of all processed mails are stored, so mails are not emitted twice after a restart. "
+        + "Without a stored state, e.g. on the first start, after the state was cleared or after the server changed the UIDVALIDITY, all matching mails in the folder are emitted.")
+@WritesAttributes({
+    @WritesAttribute(attribute="filename", description="Filename of the attached content"),
+    @WritesAttribute(attribute="sent", description="Sent date of the received mail, default formatting by local DateInstance"),
+    @WritesAttribute(attribute="kim.message.id", description="Message-ID of the received mail"),
+    @WritesAttribute(attribute="attachment.index", description="Position of the attachment within the mail, always 0"),
+    @WritesAttribute(attribute="attachment.count", description="Number of attachments emitted for the mail, always 1"),
+})
+public class KIMRXIMAPProcessor extends AbstractProcessor {
+    private static final String STATE_KEY_UID_VALIDITY = "kimrx.imap.uidvalidity";
+    private static final String STATE_KEY_LAST_UID = "kimrx.imap.last.uid";
+
+    public static final PropertyDescriptor KIMRX_IMAP_SERVER_HOST = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_SERVER_HOST")
+            .displayName("IMAP server")
+            .description("IMAP server address (SSL/TLS)")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("localhost")
+            .build();
+    public static final PropertyDescriptor KIMRX_IMAP_SERVER_PORT = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_SERVER_PORT")
+            .displayName("IMAP server port")
+            .description("IMAP server port (SSL/TLS)")
+            .addValidator(StandardValidators.INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("993")
+            .build();
+    public static final PropertyDescriptor KIMRX_IMAP_SERVER_AUTH_USERNAME = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_SERVER_AUTH_USERNAME")
+            .displayName("IMAP username")
+            .description("IMAP username to log in to the server, e.g. praxis.test@kim.telematik#mail.kim.telematik:10465#Mandant1#ClientID1#Workplace1")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_IMAP_SERVER_AUTH_PASSWORD = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_SERVER_AUTH_PASSWORD")
+            .displayName("IMAP password")
+            .description("IMAP password to log in to the server with a username")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .sensitive(true)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_IMAP_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT")
+            .displayName("Allow insecure TLS connections")
+            .description("Activate this point if you use self-signed or invalid certificates on the IMAP server")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_IMAP_FOLDER = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_FOLDER")
+            .displayName("IMAP folder")
+            .description("IMAP folder to watch for new mails")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .defaultValue("INBOX")
+            .build();
+    public static final PropertyDescriptor KIMRX_IMAP_RECONNECT_DELAY = new PropertyDescriptor
+            .Builder().name("KIMRX_IMAP_RECONNECT_DELAY")
+            .displayName("Reconnect delay")
+            .description("Time to wait before reconnecting after the IMAP connection was lost. Also used as check interval if the server does not support IDLE.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("30 sec")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile IMAPIdleReceiver receiver;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        descriptors = new ArrayList<>();
+        descriptors.add(KIMRX_MAIL_FROM);
+        descriptors.add(KIMRX_TAG);
+        descriptors.add(KIMRX_DELETE_MAILS);
+        descriptors.add(KIMRX_IMAP_SERVER_HOST);
+        descriptors.add(KIMRX_IMAP_SERVER_PORT);
+        descriptors.add(KIMRX_IMAP_SERVER_AUTH_USERNAME);
+        descriptors.add(KIMRX_IMAP_SERVER_AUTH_PASSWORD);
+        descriptors.add(KIMRX_IMAP_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT);
+        descriptors.add(KIMRX_IMAP_FOLDER);
+        descriptors.add(KIMRX_IMAP_RECONNECT_DELAY);
+        descriptors.add(KIMRX_MAIL_ATTACH_FORCE_FILENAME);
+        descriptors = Collections.unmodifiableList(descriptors);
+
+        relationships = new HashSet<>();
+        relationships.add(RELATIONSHIP_SUCCESS);
+        relationships.add(RELATIONSHIP_FAILURE);
+        relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        // continue after the last mail processed before the processor was stopped
+        StateMap state = context.getStateManager().getState(Scope.CLUSTER);
+        long uid_validity = state.get(STATE_KEY_UID_VALIDITY) == null ? -1 : Long.parseLong(state.get(STATE_KEY_UID_VALIDITY));
+        long last_uid = state.get(STATE_KEY_LAST_UID) == null ? 0 : Long.parseLong(state.get(STATE_KEY_LAST_UID));
+
+        receiver = createReceiver(context, uid_validity, last_uid);
+        receiver.start();
+    }
+
+    IMAPIdleReceiver createReceiver(final ProcessContext context, final long uid_validity, final long last_uid) {
+        String imap_host = context.getProperty(KIMRX_IMAP_SERVER_HOST).getValue();
+        int imap_port = context.getProperty(KIMRX_IMAP_SERVER_PORT).asInteger();
+        String auth_username = context.getProperty(KIMRX_IMAP_SERVER_AUTH_USERNAME).getValue();
+        String auth_password = context.getProperty(KIMRX_IMAP_SERVER_AUTH_PASSWORD).getValue();
+        boolean allow_insecure_tls = context.getProperty(KIMRX_IMAP_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT).asBoolean();
+        String folder_name = context.getProperty(KIMRX_IMAP_FOLDER).getValue();
+        long reconnect_delay = context.getProperty(KIMRX_IMAP_RECONNECT_DELAY).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        return new IMAPIdleReceiver(
+                imap_host, imap_port, auth_username, auth_password, allow_insecure_tls,
+                folder_name, uid_validity, last_uid, reconnect_delay, getLogger()
+        );
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (receiver != null) {
+            receiver.stop();
+            receiver = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        // obtain descriptor settings
+        String mail_from = context.getProperty(KIMRX_MAIL_FROM).getValue();
+        String mail_tag = context.getProperty(KIMRX_TAG).getValue();
+        boolean delete_mails = context.getProperty(KIMRX_DELETE_MAILS).asBoolean();
+        String forced_attachment_filename = context.getProperty(KIMRX_MAIL_ATTACH_FORCE_FILENAME).getValue();
+
+        // wait shortly for announced mails, so new mails are handled right away
+        List<Message> messages = new ArrayList<>();
+        try {
+            Message first = receiver.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                // no new mails announced, free the thread for other processors
+                context.yield();
+                return;
+            }
+            messages.add(first);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        receiver.drainTo(messages, 1000);
+
+        KIMMailFilter mail_filter = new KIMMailFilter(mail_from, mail_tag, null);
+        long last_uid = receiver.getLastUID();
+        long max_uid = last_uid;
+        List<Message> processed = new ArrayList<>();
+        try {
+            // drop mails that were processed already or queued twice
+            Set<Long> uids = new HashSet<>();
+            List<Message> fresh = new ArrayList<>();
+            for (Message msg : messages) {
+                long uid = ((UIDFolder) msg.getFolder()).getUID(msg);
+                if (uid > last_uid && uids.add(uid)) {
+                    fresh.add(msg);
+                    max_uid = Math.max(max_uid, uid);
+                }
+            }
+
+            // envelope and body structure of all mails in one command, bodies are not retrieved
+            if (!fresh.isEmpty()) {
+                KIMMailFilter.prefetchHeaders(fresh.get(0).getFolder(), fresh.toArray(new Message[0]));
+            }
+
+            for (Message msg : fresh) {
+                if (!mail_filter.matchesHeaders(msg)) continue;
+
+                MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg);
+                if (attachment == null) continue;
+
+                FlowFile flowFile = writeAttachmentFlowFile(session, attachment, forced_attachment_filename);
+                session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+                processed.add(msg);
+            }
+
+            // the marker is committed together with the flow files
+            Map<String, String> state = new HashMap<>();
+            state.put(STATE_KEY_UID_VALIDITY, String.valueOf(receiver.getUIDValidity()));
+            state.put(STATE_KEY_LAST_UID, String.valueOf(max_uid));
+            session.setState(state, Scope.CLUSTER);
+        } catch (MessagingException | IOException | RuntimeException e) {
+            getLogger().error("Failed to receive mails via IMAP", e);
+            session.rollback();
+
+            // the drained mails were not emitted, they are received again with the next trigger
+            receiver.resync();
+
+            // signal a failure event
+            FlowFile flowFile = session.create();
+            flowFile = session.penalize(flowFile);
+            session.transfer(flowFile, RELATIONSHIP_FAILURE);
+            session.commit();
+            return;
+        }
+
+        try {
+            session.commit();
+        } catch (RuntimeException e) {
+            receiver.resync();
+            throw e;
+        }
+        // only advanced once all mails up to this UID are committed
+        receiver.setLastUID(max_uid);
+
+        // remove mails if desired, only after the flow files are safely committed
+        if (delete_mails && !processed.isEmpty()) {
+            try {
+                for (Message msg : processed) {
+                    msg.setFlag(Flags.Flag.DELETED, true);
+                }
+                processed.get(0).getFolder().expunge();
+            } catch (MessagingException e) {
+                getLogger().warn("Failed to delete processed mails", e);
+            }
+        }
+    }
+}
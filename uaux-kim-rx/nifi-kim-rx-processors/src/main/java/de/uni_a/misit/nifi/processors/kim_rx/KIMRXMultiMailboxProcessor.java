@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.*;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.SupportsSensitiveDynamicProperties;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static de.uni_a.misit.nifi.processors.kim_rx.KIMRXProcessor.*;
+
+@Tags({"KIM", "Telematik", "KoPS"})
+@CapabilityDescription("Polls multiple KIM mailboxes of a POP3 server concurrently and forwards the tagged mails of all mailboxes as flow files")
+@SeeAlso({KIMRXProcessor.class})
+@TriggerSerially
+@SupportsSensitiveDynamicProperties
+@DynamicProperty(name = "POP3 username", value = "POP3 password",
+        description = "Adds a KIM mailbox to poll. The property name is the POP3 username, e.g. praxis.test@kim.telematik#mail.kim.telematik:10465#Mandant1#ClientID1#Workplace1, the value is its password.")
+@ReadsAttributes({@ReadsAttribute(attribute="ignore_mails_until", description="Ignore all mails with a sent date equal or older than provided. The date is parsed by the local DateInstance object. Such mails are not affected by delete_mails.")})
+@WritesAttributes({
+    @WritesAttribute(attribute="filename", description="Filename of the attached content"),
+    @WritesAttribute(attribute="sent", description="Sent date of the received mail, default formatting by local DateInstance"),
+    @WritesAttribute(attribute="kim.message.id", description="Message-ID of the received mail"),
+    @WritesAttribute(attribute="attachment.index", description="Position of the attachment within the mail, always 0"),
+    @WritesAttribute(attribute="attachment.count", description="Number of attachments emitted for the mail, always 1"),
+    @WritesAttribute(attribute="kim.mailbox", description="POP3 username of the mailbox the mail was received from"),
+})
+public class KIMRXMultiMailboxProcessor extends AbstractProcessor {
+    public static final String ATTRIBUTE_MAILBOX = "kim.mailbox";
+
+    public static final PropertyDescriptor KIMRX_MAX_CONCURRENT_MAILBOXES = new PropertyDescriptor
+            .Builder().name("KIMRX_MAX_CONCURRENT_MAILBOXES")
+            .displayName("Maximum concurrent mailboxes")
+            .description("Maximum number of mailboxes that are polled at the same time")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("8")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile Map<String, POP3Connection> pop3_connections;
+    private volatile ExecutorService poll_executor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        descriptors = new ArrayList<>();
+        descriptors.add(KIMRX_MAIL_FROM);
+        descriptors.add(KIMRX_TAG);
+        descriptors.add(KIMRX_DELETE_MAILS);
+        descriptors.add(KIMRX_EMIT_MOST_RECENT_ONLY);
+        descriptors.add(KIMRX_POP3_SERVER_HOST);
+        descriptors.add(KIMRX_POP3_SERVER_PORT);
+        descriptors.add(KIMRX_POP3_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT);
+        descriptors.add(KIMRX_MAIL_ATTACH_FORCE_FILENAME);
+        descriptors.add(KIMRX_SPOOL_MAILS_TO_DISK);
+        descriptors.add(KIMRX_SPOOL_DIRECTORY);
+        descriptors.add(KIMRX_MAX_CONCURRENT_MAILBOXES);
+        descriptors = Collections.unmodifiableList(descriptors);
+
+        relationships = new HashSet<>();
+        relationships.add(RELATIONSHIP_SUCCESS);
+        relationships.add(RELATIONSHIP_NO_NEW_MAIL);
+        relationships.add(RELATIONSHIP_FAILURE);
+        relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .displayName(propertyDescriptorName)
+                .description("POP3 password of the mailbox " + propertyDescriptorName)
+                .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                .sensitive(true)
+                .dynamic(true)
+                .required(false)
+                .build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        List<ValidationResult> results = new ArrayList<>();
+        boolean has_mailbox = context.getProperties().keySet().stream().anyMatch(PropertyDescriptor::isDynamic);
+        if (!has_mailbox) {
+            results.add(new ValidationResult.Builder()
+                    .subject("Mailboxes")
+                    .valid(false)
+                    .explanation("at least one mailbox has to be added as dynamic property (POP3 username = POP3 password)")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        int max_concurrent_mailboxes = context.getProperty(KIMRX_MAX_CONCURRENT_MAILBOXES).asInteger();
+
+        // one managed connection per mailbox
+        Map<String, POP3Connection> connections = new LinkedHashMap<>();
+        for (Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+            if (!entry.getKey().isDynamic()) continue;
+            String auth_username = entry.getKey().getName();
+            String auth_password = context.getProperty(entry.getKey()).getValue();
+            connections.put(auth_username, createConnection(context, auth_username, auth_password));
+        }
+        pop3_connections = connections;
+
+        // the mailboxes are polled on a bounded pool, the NiFi thread only writes the results
+        poll_executor = Executors.newFixedThreadPool(Math.max(1, Math.min(connections.size(), max_concurrent_mailboxes)));
+    }
+
+    POP3Connection createConnection(final ProcessContext context, final String auth_username, final String auth_password) {
+        String pop3_host = context.getProperty(KIMRX_POP3_SERVER_HOST).getValue();
+        int pop3_port = context.getProperty(KIMRX_POP3_SERVER_PORT).asInteger();
+        boolean allow_insecure_tls = context.getProperty(KIMRX_POP3_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT).asBoolean();
+        Properties receive_properties = KIMRXProcessor.buildReceiveProperties(context);
+
+        return new POP3Connection(
+                pop3_host, pop3_port, auth_username, auth_password, allow_insecure_tls,
+                receive_properties
+        );
+    }
+
+    POP3MailboxPoller createPoller(final KIMMailFilter mail_filter, final boolean most_recent_only) {
+        return new POP3MailboxPoller(mail_filter, most_recent_only);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (poll_executor != null) {
+            poll_executor.shutdownNow();
+            poll_executor = null;
+        }
+        if (pop3_connections != null) {
+            pop3_connections.values().forEach(POP3Connection::close);
+            pop3_connections = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        FlowFile session_flowFile = session.get();
+
+        // obtain descriptor settings
+        String mail_from = context.getProperty(KIMRX_MAIL_FROM).getValue();
+        String mail_tag = context.getProperty(KIMRX_TAG).getValue();
+        boolean delete_mails = context.getProperty(KIMRX_DELETE_MAILS).asBoolean();
+        boolean most_recent_only = context.getProperty(KIMRX_EMIT_MOST_RECENT_ONLY).asBoolean();
+        String forced_attachment_filename = context.getProperty(KIMRX_MAIL_ATTACH_FORCE_FILENAME).getValue();
+
+        // setup date and get potential date threshold; Older mails are not deleted even if delete_mails is enabled!
+        Date ignore_until = null;
+        try{
+            ignore_until = DateFormat.getDateInstance().parse(
+                session_flowFile.getAttribute("ignore_mails_until")
+            );
+        } catch (NullPointerException | ParseException ignored) { }
+
+        KIMMailFilter mail_filter = new KIMMailFilter(mail_from, mail_tag, ignore_until);
+
+        // start polling all mailboxes at once
+        PollHandover handover = new PollHandover();
+        Map<String, Future<MailboxPoll>> polls = new LinkedHashMap<>();
+        for (Map.Entry<String, POP3Connection> entry : pop3_connections.entrySet()) {
+            String mailbox = entry.getKey();
+            POP3Connection connection = entry.getValue();
+            polls.put(mailbox, poll_executor.submit(() -> {
+                MailboxPoll poll = pollMailbox(connection, mail_filter, delete_mails, most_recent_only);
+                if (handover.offer(mailbox, poll)) return poll;
+                // the trigger stopped waiting for this mailbox, nobody else closes the inbox
+                connection.releaseInbox(poll.inbox, false);
+                return null;
+            }));
+        }
+
+        // merge the results of all mailboxes into this session
+        // The inboxes of successful polls stay open until the session is committed.
+        Map<POP3Connection, MailboxPoll> committable = new LinkedHashMap<>();
+        boolean any_mail = false;
+        List<String> waiting = new ArrayList<>(polls.keySet());
+        while (!waiting.isEmpty()) {
+            String mailbox = waiting.get(0);
+            POP3Connection connection = pop3_connections.get(mailbox);
+            MailboxPoll poll = null;
+            boolean reconnect = false;
+            try {
+                poll = polls.get(mailbox).get();
+                handover.take(mailbox);
+                waiting.remove(0);
+                any_mail |= !poll.matches.isEmpty();
+
+                for (MailAttachment attachment : poll.matches) {
+                    FlowFile flowFile = writeAttachmentFlowFile(session, attachment, forced_attachment_filename);
+                    flowFile = session.putAttribute(flowFile, ATTRIBUTE_MAILBOX, mailbox);
+                    session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+                }
+                committable.put(connection, poll);
+                poll = null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandonPolls(session, handover, polls, waiting);
+                waiting.clear();
+            } catch (ExecutionException | MessagingException | IOException | RuntimeException e) {
+                getLogger().error("Failed to receive mails of mailbox {}", mailbox, e);
+                waiting.remove(mailbox);
+                reconnect = true;
+                transferMailboxFailure(session, mailbox);
+            } finally {
+                // failed mailboxes are released right away, without deleting anything
+                if (poll != null) connection.releaseInbox(poll.inbox, false);
+                if (reconnect) connection.invalidate();
+            }
+        }
+
+        if (!any_mail) {
+            // we signal a no-new-mails event
+            session.transfer(session.create(), RELATIONSHIP_NO_NEW_MAIL);
+        }
+
+        // cleanup session flow file if it was provided
+        if (session_flowFile != null) {
+            session.remove(session_flowFile);
+        }
+
+        // mails are only deleted after the flow files are committed, a failed commit keeps them on the server
+        session.commitAsync(() -> {
+            committable.forEach((connection, poll) -> releaseAfterCommit(connection, poll, delete_mails));
+        }, failure -> {
+            getLogger().error("Failed to commit the received mails, the mails are kept on the server", failure);
+            committable.forEach((connection, poll) -> {
+                connection.releaseInbox(poll.inbox, false);
+                connection.invalidate();
+            });
+        });
+    }
+
+    private void abandonPolls(final ProcessSession session, final PollHandover handover,
+                              final Map<String, Future<MailboxPoll>> polls, final List<String> waiting) {
+        // Stop waiting for the remaining mailboxes. Their inboxes are closed without deleting anything, either
+        // here for finished polls or by the poll itself once it finishes. The connections are not invalidated
+        // here, as a running poll still holds them; the next poll opens a fresh POP3 session anyway.
+        for (String mailbox : waiting) {
+            polls.get(mailbox).cancel(true);
+            transferMailboxFailure(session, mailbox);
+        }
+        handover.abandon().forEach((mailbox, poll) -> pop3_connections.get(mailbox).releaseInbox(poll.inbox, false));
+    }
+
+    private void releaseAfterCommit(final POP3Connection connection, final MailboxPoll poll, final boolean delete_mails) {
+        // POP3 flags are local only, the DELE commands are sent as one batch when the inbox is closed
+        boolean expunge = false;
+        if (delete_mails) {
+            try {
+                for (Message msg : poll.processed) {
+                    msg.setFlag(Flags.Flag.DELETED, true);
+                }
+                expunge = !poll.processed.isEmpty();
+            } catch (MessagingException e) {
+                getLogger().warn("Failed to flag the received mails for deletion, the mails are kept on the server", e);
+            }
+        }
+        connection.releaseInbox(poll.inbox, expunge);
+    }
+
+    private MailboxPoll pollMailbox(POP3Connection connection, KIMMailFilter mail_filter, boolean delete_mails,
+                                    boolean most_recent_only) throws MessagingException, IOException {
+        // runs on the poll executor: all network I/O of a mailbox happens here
+        Folder inbox = connection.openInbox(delete_mails ? Folder.READ_WRITE : Folder.READ_ONLY);
+        try {
+            POP3MailboxPoller poller = createPoller(mail_filter, most_recent_only);
+            List<MailAttachment> matches = poller.findMatches((POP3Folder) inbox, null);
+
+            // emitted and superseded mails are handled alike when it comes to deletion
+            List<Message> processed = new ArrayList<>(poller.getSupersededMessages());
+            for (MailAttachment attachment : matches) {
+                processed.add(attachment.getMessage());
+            }
+            return new MailboxPoll(inbox, matches, processed);
+        } catch (MessagingException | IOException | RuntimeException e) {
+            // the inbox is not handed over, so close it here
+            connection.releaseInbox(inbox, false);
+            throw e;
+        }
+    }
+
+    private static void transferMailboxFailure(final ProcessSession session, final String mailbox) {
+        // signal a failure event
+        FlowFile flowFile = session.create();
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_MAILBOX, mailbox);
+        flowFile = session.penalize(flowFile);
+        session.transfer(flowFile, RELATIONSHIP_FAILURE);
+    }
+
+    private static class PollHandover {
+        // finished polls the trigger has not taken over yet
+        private final Map<String, MailboxPoll> pending = new HashMap<>();
+        private boolean abandoned = false;
+
+        private synchronized boolean offer(String mailbox, MailboxPoll poll) {
+            if (abandoned) return false;
+            pending.put(mailbox, poll);
+            return true;
+        }
+
+        private synchronized void take(String mailbox) {
+            pending.remove(mailbox);
+        }
+
+        private synchronized Map<String, MailboxPoll> abandon() {
+            // polls finishing from now on close their inboxes themselves
+            abandoned = true;
+            Map<String, MailboxPoll> finished = new HashMap<>(pending);
+            pending.clear();
+            return finished;
+        }
+    }
+
+    private static class MailboxPoll {
+        private final Folder inbox;
+        private final List<MailAttachment> matches;
+        private final List<Message> processed;
+
+        private MailboxPoll(Folder inbox, List<MailAttachment> matches, List<Message> processed) {
+            this.inbox = inbox;
+            this.matches = matches;
+            this.processed = processed;
+        }
+    }
+}
@@ -17,29 +17,50 @@
 package de.uni_a.misit.nifi.processors.kim_rx;
 
 import jakarta.mail.*;
-import jakarta.mail.internet.MimeBodyPart;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Message;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 @Tags({"KIM", "Telematik", "KoPS"})
@@ -49,7 +70,27 @@ import java.util.regex.Pattern;
 @WritesAttributes({
     @WritesAttribute(attribute="filename", description="Filename of the attached content"),
     @WritesAttribute(attribute="sent", description="Sent date of the received mail, default formatting by local DateInstance"),
+    @WritesAttribute(attribute="kim.message.id", description="Message-ID of the received mail, shared by all attachments of the mail"),
+    @WritesAttribute(attribute="attachment.index", description="Position of the attachment within the mail, starting with 0"),
+    @WritesAttribute(attribute="attachment.count", description="Number of attachments emitted for the mail"),
+    @WritesAttribute(attribute="kim.content.sha256", description="SHA-256 hash of the attachment content, only if duplicates are detected"),
+    @WritesAttribute(attribute="kim.bundle.entries", description="Number of attachments in a ZIP bundle, only in the bundle output mode"),
+    @WritesAttribute(attribute="mime.type", description="application/zip, only in the bundle output mode"),
+    @WritesAttribute(attribute="kim.mail.size", description="Size of a mail routed to oversize, as listed by the server"),
+    @WritesAttribute(attribute="kim.mail.from", description="Sender of a mail routed to oversize"),
+    @WritesAttribute(attribute="kim.mail.subject", description="Subject of a mail routed to oversize"),
+    @WritesAttribute(attribute="kim.mail.uidl", description="POP3 UIDL of a mail routed to oversize"),
+    @WritesAttribute(attribute="kim.transfer.id", description="Transfer id of content reassembled from several mails"),
+    @WritesAttribute(attribute="kim.transfer.chunks", description="Number of mails the content was sent in"),
+    @WritesAttribute(attribute="kim.transfer.chunks.received", description="Number of received chunks of a transfer routed to failure"),
 })
+@DynamicProperty(name = "Relationship name", value = "Mail subject text tag",
+        description = "Mails with the tag in their subject are routed to a relationship of the same name, e.g. study_a = [STUDY_KIM1]. "
+                + "Mails with several tags are emitted to each of their relationships.")
+@DynamicRelationship(name = "Name from dynamic property", description = "Mails with the tag of the dynamic property")
+@TriggerSerially
+@Stateful(scopes = Scope.CLUSTER, description = "If seen mails are skipped, the POP3 UIDLs of all inspected mails that are still on the server are stored. "
+        + "If a batch limit is reached, the UIDL of the mail to continue with is stored.")
 public class KIMRXProcessor extends AbstractProcessor {
     // Regex from https://stackoverflow.com/a/201378
     // private static final Pattern EMAIL_ADDRESS_REGEX_PATTERN = Pattern.compile("(?:[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*|\"(?:[\\x01-\\x08\\x0b\\x0c\\x0e-\\x1f\\x21\\x23-\\x5b\\x5d-\\x7f]|\\\\[\\x01-\\x09\\x0b\\x0c\\x0e-\\x7f])*\")@(?:(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?|\\[(?:(?:(2(5[0-5]|[0-4][0-9])|1[0-9][0-9]|[1-9]?[0-9]))\\.){3}(?:(2(5[0-5]|[0-4][0-9])|1[0-9][0-9]|[1-9]?[0-9])|[a-z0-9-]*[a-z0-9]:(?:[\\x01-\\x08\\x0b\\x0c\\x0e-\\x1f\\x21-\\x5a\\x53-\\x7f]|\\\\[\\x01-\\x09\\x0b\\x0c\\x0e-\\x7f])+)\\])");
@@ -89,7 +130,8 @@ public class KIMRXProcessor extends AbstractProcessor {
     public static final PropertyDescriptor KIMRX_EMIT_MOST_RECENT_ONLY = new PropertyDescriptor
             .Builder().name("KIMRX_EMIT_MOST_RECENT_ONLY")
             .displayName("Only emit most recent file")
-            .description("If true, only the latest mail attachment content is emitted. If disabled, multiple flow files are emitted.")
+            .description("If true, only the latest mail attachment content of each tag is emitted, older mails with the same tag are superseded. "
+                    + "If disabled, multiple flow files are emitted.")
             .allowableValues("true", "false")
             .defaultValue("true")
             .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
@@ -145,6 +187,264 @@ public class KIMRXProcessor extends AbstractProcessor {
             .required(false)
             .build();
 
+    public static final PropertyDescriptor KIMRX_SKIP_SEEN_MAILS = new PropertyDescriptor
+            .Builder().name("KIMRX_SKIP_SEEN_MAILS")
+            .displayName("Skip already seen mails")
+            .description("If true, the POP3 UIDLs of inspected mails are stored in the processor state and these mails are not fetched again in subsequent polls. Useful if mails are not deleted.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_SEEN_MAILS_MAX_ENTRIES = new PropertyDescriptor
+            .Builder().name("KIMRX_SEEN_MAILS_MAX_ENTRIES")
+            .displayName("Maximum number of stored UIDLs")
+            .description("Expected upper bound of seen mails kept on the server. The state keeps a 64 bit hash (11 characters) of the UIDL of every seen mail "
+                    + "until the server no longer lists the mail, so no seen mail is emitted again. If the state holds more entries, a warning is logged, "
+                    + "since a large state may exceed the size limit of the cluster state provider.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("10000")
+            .build();
+
+    public static final PropertyDescriptor KIMRX_SPOOL_MAILS_TO_DISK = new PropertyDescriptor
+            .Builder().name("KIMRX_SPOOL_MAILS_TO_DISK")
+            .displayName("Spool retrieved mails to disk")
+            .description("If true, retrieved mails are streamed into temporary files instead of being held in memory. The attachment is decoded while it is written to the flow file, so the memory usage does not depend on the attachment size. "
+                    + "Disabled by default, mails are then received into memory as before. To spool only large mails, set the in-memory mail size instead.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_SPOOL_DIRECTORY = new PropertyDescriptor
+            .Builder().name("KIMRX_SPOOL_DIRECTORY")
+            .displayName("Spool directory")
+            .description("Directory for the temporary mail files. If not provided, the default temporary directory of the JVM is used.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, false))
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor KIMRX_BATCH_MAX_MESSAGES = new PropertyDescriptor
+            .Builder().name("KIMRX_BATCH_MAX_MESSAGES")
+            .displayName("Maximum mails per poll")
+            .description("If provided, at most this number of matching mails is retrieved per poll. The next poll continues with the remaining mails. "
+                    + "It reuses the POP3 session of the previous poll if it starts within a minute, the deletions of all its polls are committed when the session ends. "
+                    + "Ignored if only the most recent file is emitted, the most recent mail is always searched in the whole mailbox.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_BATCH_MAX_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_BATCH_MAX_SIZE")
+            .displayName("Maximum mail size per poll")
+            .description("If provided, matching mails are retrieved until their total size (as listed by the POP3 server) reaches this limit, e.g. 100 MB. "
+                    + "At least one mail is retrieved per poll. The next poll continues with the remaining mails. "
+                    + "Ignored if only the most recent file is emitted, the most recent mail is always searched in the whole mailbox.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor KIMRX_EXTRACT_ALL_ATTACHMENTS = new PropertyDescriptor
+            .Builder().name("KIMRX_EXTRACT_ALL_ATTACHMENTS")
+            .displayName("Emit all attachments")
+            .description("If true, every attachment of a mail is emitted as its own flow file. If disabled, only the first attachment is emitted.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_DECODE_THREADS = new PropertyDescriptor
+            .Builder().name("KIMRX_DECODE_THREADS")
+            .displayName("Attachment decoding threads")
+            .description("Number of threads decoding the attachments of a poll in parallel into temporary files. With 1, the attachments are decoded one after another while they are written to the flow files.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor KIMRX_PIPELINED_RECEIVE = new PropertyDescriptor
+            .Builder().name("KIMRX_PIPELINED_RECEIVE")
+            .displayName("Pipelined receive")
+            .description("If true, matching mails are retrieved one after another while the attachment decoding threads parse and decode the mails retrieved before. "
+                    + "Not used if only the most recent file is emitted.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_PIPELINE_QUEUE_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_PIPELINE_QUEUE_SIZE")
+            .displayName("Pipeline queue size")
+            .description("Maximum number of retrieved mails waiting to be decoded. If reached, the retrieval pauses until a decoding thread is available.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("8")
+            .build();
+
+    public static final PropertyDescriptor KIMRX_DETECT_DUPLICATES = new PropertyDescriptor
+            .Builder().name("KIMRX_DETECT_DUPLICATES")
+            .displayName("Detect duplicate attachments")
+            .description("If true, the attachment content is hashed while it is received. Attachments with a content that was recently emitted are routed to duplicate without content. "
+                    + "Attachments only known by the duplicate filter, which may answer wrongly, are emitted with their content and the attribute "
+                    + "kim.duplicate.suspected.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_DUPLICATES_FILTER_FILE = new PropertyDescriptor
+            .Builder().name("KIMRX_DUPLICATES_FILTER_FILE")
+            .displayName("Duplicate filter file")
+            .description("Local file the hashes of emitted attachments are stored in (as Bloom filter), so duplicates are also detected after a restart. Required if duplicates are detected.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_DUPLICATES_EXPECTED_ENTRIES = new PropertyDescriptor
+            .Builder().name("KIMRX_DUPLICATES_EXPECTED_ENTRIES")
+            .displayName("Expected number of distinct attachments")
+            .description("Number of distinct attachments the duplicate filter is sized for, at most 100000000. The filter file takes about 1.8 MB per million entries at a false positive rate of 0.001. Changing it resets the filter.")
+            .addValidator(StandardValidators.createLongValidator(1, 100000000, true))
+            .required(true)
+            .defaultValue("1000000")
+            .build();
+    public static final PropertyDescriptor KIMRX_DUPLICATES_FALSE_POSITIVE_RATE = new PropertyDescriptor
+            .Builder().name("KIMRX_DUPLICATES_FALSE_POSITIVE_RATE")
+            .displayName("Duplicate filter false positive rate")
+            .description("Probability that a new attachment is wrongly considered a duplicate once the expected number of entries is reached, between 0 and 1. Changing it resets the filter.")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .required(true)
+            .defaultValue("0.001")
+            .build();
+    public static final PropertyDescriptor KIMRX_DUPLICATES_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_DUPLICATES_CACHE_SIZE")
+            .displayName("Duplicate cache size")
+            .description("Number of most recently seen hashes kept in memory, these are answered without the filter. "
+                    + "They are stored next to the filter file, so their duplicates are also dropped after a restart.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("10000")
+            .build();
+
+    public static final PropertyDescriptor KIMRX_RAW_SPOOL_DIRECTORY = new PropertyDescriptor
+            .Builder().name("KIMRX_RAW_SPOOL_DIRECTORY")
+            .displayName("Raw mail spool directory")
+            .description("If provided, retrieved mails are kept in this directory until their flow files are committed. "
+                    + "A poll that failed is retried from the spooled copies, only mails that are not spooled yet are downloaded again.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_RAW_SPOOL_MAX_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_RAW_SPOOL_MAX_SIZE")
+            .displayName("Raw mail spool size")
+            .description("Upper bound of the raw mail spool. If exceeded, the oldest spooled mails are removed first.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(true)
+            .defaultValue("1 GB")
+            .build();
+
+    public static final PropertyDescriptor KIMRX_CHUNK_DIRECTORY = new PropertyDescriptor
+            .Builder().name("KIMRX_CHUNK_DIRECTORY")
+            .displayName("Chunk directory")
+            .description("If provided, mails of a chunked transfer (sent by KIM TX with a chunk size) are stored in this directory until all chunks "
+                    + "have been received. The verified content is then emitted as a single flow file, also in the bundle output mode. "
+                    + "Stored chunk mails are deleted from the server after the commit, regardless of the delete setting. "
+                    + "Without a directory, every chunk is emitted as a flow file of its own.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_CHUNK_TIMEOUT = new PropertyDescriptor
+            .Builder().name("KIMRX_CHUNK_TIMEOUT")
+            .displayName("Chunked transfer timeout")
+            .description("A transfer without new chunks for this period is discarded and reported to failure.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("24 hours")
+            .build();
+
+    public static final PropertyDescriptor KIMRX_MAX_MAIL_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_MAX_MAIL_SIZE")
+            .displayName("Maximum mail size")
+            .description("If provided, matching mails above this size are not retrieved. A flow file with their headers is routed to oversize instead "
+                    + "and the mails are kept on the server. Skip seen mails to report them only once.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_IN_MEMORY_MAIL_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_IN_MEMORY_MAIL_SIZE")
+            .displayName("In-memory mail size")
+            .description("If provided, only mails up to this size are retrieved into memory. Larger mails are streamed from the server into a temporary file "
+                    + "in the spool directory and parsed from there.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_IN_MEMORY_POLL_SIZE = new PropertyDescriptor
+            .Builder().name("KIMRX_IN_MEMORY_POLL_SIZE")
+            .displayName("In-memory poll size")
+            .description("Upper bound of the mails held in memory during a single poll, only used together with the in-memory mail size. "
+                    + "If reached, the remaining mails of the poll are streamed to temporary files.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(true)
+            .defaultValue("16 MB")
+            .build();
+
+    public static final PropertyDescriptor KIMRX_EMPTY_POLL_BACKOFF_INITIAL = new PropertyDescriptor
+            .Builder().name("KIMRX_EMPTY_POLL_BACKOFF_INITIAL")
+            .displayName("Empty poll backoff")
+            .description("Pause after the first poll without new mails. It is doubled with every further empty poll until the maximum backoff is reached. "
+                    + "As soon as mails are received, the mailbox is polled with the run schedule again.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("1 sec")
+            .build();
+    public static final PropertyDescriptor KIMRX_EMPTY_POLL_BACKOFF_MAX = new PropertyDescriptor
+            .Builder().name("KIMRX_EMPTY_POLL_BACKOFF_MAX")
+            .displayName("Maximum empty poll backoff")
+            .description("If provided, polls are paused after polls without new mails, up to this period. Incoming flow files always trigger a poll.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMRX_EMIT_NO_NEW_MAIL = new PropertyDescriptor
+            .Builder().name("KIMRX_EMIT_NO_NEW_MAIL")
+            .displayName("Emit no-new-mail flow files")
+            .description("If true, a flow file is transferred to no-new-mail if a poll found no new mails.")
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMRX_NO_NEW_MAIL_MIN_INTERVAL = new PropertyDescriptor
+            .Builder().name("KIMRX_NO_NEW_MAIL_MIN_INTERVAL")
+            .displayName("Minimum no-new-mail interval")
+            .description("If provided, at most one no-new-mail flow file is emitted within this period.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(false)
+            .build();
+
+    public static final String OUTPUT_MODE_FLOW_FILE_PER_ATTACHMENT = "flow file per attachment";
+    public static final String OUTPUT_MODE_ZIP_BUNDLE = "ZIP bundle per poll";
+    public static final PropertyDescriptor KIMRX_OUTPUT_MODE = new PropertyDescriptor
+            .Builder().name("KIMRX_OUTPUT_MODE")
+            .displayName("Output mode")
+            .description("Either every attachment is emitted as its own flow file, or all attachments of a poll are packed into a single ZIP flow file. "
+                    + "The bundle contains an index.json entry with filename, sent date, sender and message id of every entry.")
+            .allowableValues(OUTPUT_MODE_FLOW_FILE_PER_ATTACHMENT, OUTPUT_MODE_ZIP_BUNDLE)
+            .defaultValue(OUTPUT_MODE_FLOW_FILE_PER_ATTACHMENT)
+            .required(true)
+            .build();
+
+    public static final String ATTRIBUTE_MESSAGE_ID = "kim.message.id";
+    public static final String ATTRIBUTE_ATTACHMENT_INDEX = "attachment.index";
+    public static final String ATTRIBUTE_ATTACHMENT_COUNT = "attachment.count";
+    public static final String ATTRIBUTE_CONTENT_HASH = "kim.content.sha256";
+    public static final String ATTRIBUTE_DUPLICATE_SUSPECTED = "kim.duplicate.suspected";
+    public static final String ATTRIBUTE_BUNDLE_ENTRIES = "kim.bundle.entries";
+    public static final String ATTRIBUTE_MAIL_SIZE = "kim.mail.size";
+    public static final String ATTRIBUTE_MAIL_FROM = "kim.mail.from";
+    public static final String ATTRIBUTE_MAIL_SUBJECT = "kim.mail.subject";
+    public static final String ATTRIBUTE_MAIL_UIDL = "kim.mail.uidl";
+    public static final String ATTRIBUTE_TRANSFER_ID = "kim.transfer.id";
+    public static final String ATTRIBUTE_TRANSFER_CHUNKS = "kim.transfer.chunks";
+    public static final String ATTRIBUTE_TRANSFER_RECEIVED_CHUNKS = "kim.transfer.chunks.received";
+
     // Relationships
     public static final Relationship RELATIONSHIP_SUCCESS = new Relationship
             .Builder()
@@ -162,9 +462,44 @@ public class KIMRXProcessor extends AbstractProcessor {
             .name("failure")
             .description("Something went wrong during mail acquisition and parsing.")
             .build();
+    public static final Relationship RELATIONSHIP_DUPLICATE = new Relationship
+            .Builder()
+            .name("duplicate")
+            .description("The attachment content was emitted recently. The flow file carries the attributes only.")
+            .build();
+    public static final Relationship RELATIONSHIP_OVERSIZE = new Relationship
+            .Builder()
+            .name("oversize")
+            .description("A matching mail exceeded the maximum mail size and was not retrieved. The flow file carries the mail headers only.")
+            .autoTerminateDefault(true)
+            .build();
+    private static final String STATE_KEY_RESUME_UIDL = "kimrx.batch.resume.uidl";
+
     private List<PropertyDescriptor> descriptors;
 
-    private Set<Relationship> relationships;
+    private Set<Relationship> static_relationships;
+
+    private volatile Set<Relationship> relationships;
+
+    private volatile Map<String, Relationship> tag_relationships = Collections.emptyMap();
+
+    private volatile SubjectTagMatcher tag_matcher;
+
+    private volatile POP3Connection pop3_connection;
+
+    private volatile AttachmentDecoder attachment_decoder;
+
+    private volatile PipelinedMailReceiver pipeline;
+
+    private volatile AttachmentDeduplicator deduplicator;
+
+    private volatile RawMessageSpool raw_spool;
+
+    private volatile ChunkReassembler reassembler;
+
+    // adaptive polling: pauses the polls while the mailbox stays empty
+    private volatile EmptyPollBackoff backoff = new EmptyPollBackoff(0, 0);
+    private volatile long last_no_new_mail_millis = 0;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -179,13 +514,43 @@ public class KIMRXProcessor extends AbstractProcessor {
         descriptors.add(KIMRX_POP3_SERVER_AUTH_PASSWORD);
         descriptors.add(KIMRX_POP3_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT);
         descriptors.add(KIMRX_MAIL_ATTACH_FORCE_FILENAME);
+        descriptors.add(KIMRX_SKIP_SEEN_MAILS);
+        descriptors.add(KIMRX_SEEN_MAILS_MAX_ENTRIES);
+        descriptors.add(KIMRX_SPOOL_MAILS_TO_DISK);
+        descriptors.add(KIMRX_SPOOL_DIRECTORY);
+        descriptors.add(KIMRX_BATCH_MAX_MESSAGES);
+        descriptors.add(KIMRX_BATCH_MAX_SIZE);
+        descriptors.add(KIMRX_EXTRACT_ALL_ATTACHMENTS);
+        descriptors.add(KIMRX_DECODE_THREADS);
+        descriptors.add(KIMRX_PIPELINED_RECEIVE);
+        descriptors.add(KIMRX_PIPELINE_QUEUE_SIZE);
+        descriptors.add(KIMRX_RAW_SPOOL_DIRECTORY);
+        descriptors.add(KIMRX_RAW_SPOOL_MAX_SIZE);
+        descriptors.add(KIMRX_CHUNK_DIRECTORY);
+        descriptors.add(KIMRX_CHUNK_TIMEOUT);
+        descriptors.add(KIMRX_MAX_MAIL_SIZE);
+        descriptors.add(KIMRX_IN_MEMORY_MAIL_SIZE);
+        descriptors.add(KIMRX_IN_MEMORY_POLL_SIZE);
+        descriptors.add(KIMRX_EMPTY_POLL_BACKOFF_INITIAL);
+        descriptors.add(KIMRX_EMPTY_POLL_BACKOFF_MAX);
+        descriptors.add(KIMRX_EMIT_NO_NEW_MAIL);
+        descriptors.add(KIMRX_NO_NEW_MAIL_MIN_INTERVAL);
+        descriptors.add(KIMRX_OUTPUT_MODE);
+        descriptors.add(KIMRX_DETECT_DUPLICATES);
+        descriptors.add(KIMRX_DUPLICATES_FILTER_FILE);
+        descriptors.add(KIMRX_DUPLICATES_EXPECTED_ENTRIES);
+        descriptors.add(KIMRX_DUPLICATES_FALSE_POSITIVE_RATE);
+        descriptors.add(KIMRX_DUPLICATES_CACHE_SIZE);
         descriptors = Collections.unmodifiableList(descriptors);
 
         relationships = new HashSet<>();
         relationships.add(RELATIONSHIP_SUCCESS);
         relationships.add(RELATIONSHIP_NO_NEW_MAIL);
         relationships.add(RELATIONSHIP_FAILURE);
+        relationships.add(RELATIONSHIP_DUPLICATE);
+        relationships.add(RELATIONSHIP_OVERSIZE);
         relationships = Collections.unmodifiableSet(relationships);
+        static_relationships = relationships;
     }
 
     @Override
@@ -198,9 +563,202 @@ public class KIMRXProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .displayName(propertyDescriptorName)
+                .description("Mail subject text tag routed to the relationship " + propertyDescriptorName)
+                .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+                .dynamic(true)
+                .required(false)
+                .build();
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        if (!descriptor.isDynamic()) return;
+
+        // every tag property has its own relationship
+        Map<String, Relationship> new_tag_relationships = new LinkedHashMap<>(tag_relationships);
+        if (newValue == null) {
+            new_tag_relationships.remove(descriptor.getName());
+        } else if (!new_tag_relationships.containsKey(descriptor.getName())) {
+            new_tag_relationships.put(descriptor.getName(), new Relationship.Builder()
+                    .name(descriptor.getName())
+                    .description("Mails with the tag of the dynamic property " + descriptor.getName())
+                    .build());
+        }
+
+        Set<Relationship> new_relationships = new HashSet<>(static_relationships);
+        new_relationships.addAll(new_tag_relationships.values());
+        tag_relationships = Collections.unmodifiableMap(new_tag_relationships);
+        relationships = Collections.unmodifiableSet(new_relationships);
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        List<ValidationResult> results = new ArrayList<>();
+        for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (!descriptor.isDynamic()) continue;
+            for (Relationship relationship : static_relationships) {
+                if (relationship.getName().equals(descriptor.getName())) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(descriptor.getName())
+                            .valid(false)
+                            .explanation("the relationship " + relationship.getName() + " already exists, choose another name for the tag")
+                            .build());
+                }
+            }
+        }
+        if (context.getProperty(KIMRX_DETECT_DUPLICATES).asBoolean()) {
+            if (OUTPUT_MODE_ZIP_BUNDLE.equals(context.getProperty(KIMRX_OUTPUT_MODE).getValue())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(KIMRX_DETECT_DUPLICATES.getDisplayName())
+                        .valid(false)
+                        .explanation("duplicates can only be detected if every attachment is emitted as its own flow file")
+                        .build());
+            }
+            if (!context.getProperty(KIMRX_DUPLICATES_FILTER_FILE).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(KIMRX_DUPLICATES_FILTER_FILE.getDisplayName())
+                        .valid(false)
+                        .explanation("a filter file is required to detect duplicates")
+                        .build());
+            }
+            double false_positive_rate = context.getProperty(KIMRX_DUPLICATES_FALSE_POSITIVE_RATE).asDouble();
+            if (false_positive_rate <= 0 || false_positive_rate >= 1) {
+                results.add(new ValidationResult.Builder()
+                        .subject(KIMRX_DUPLICATES_FALSE_POSITIVE_RATE.getDisplayName())
+                        .valid(false)
+                        .explanation("the false positive rate has to be between 0 and 1")
+                        .build());
+            }
+        }
+        return results;
+    }
+
     @OnScheduled
-    public void onScheduled(final ProcessContext context) {
+    public void onScheduled(final ProcessContext context) throws IOException {
+        // all tags are matched in a single pass over the subject, the tag property routes to success
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put(RELATIONSHIP_SUCCESS.getName(), context.getProperty(KIMRX_TAG).getValue());
+        for (Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+            if (entry.getKey().isDynamic() && entry.getValue() != null) {
+                tags.put(entry.getKey().getName(), entry.getValue());
+            }
+        }
+        tag_matcher = new SubjectTagMatcher(tags);
+
+        // start with the run schedule again
+        backoff = new EmptyPollBackoff(
+                context.getProperty(KIMRX_EMPTY_POLL_BACKOFF_INITIAL).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(KIMRX_EMPTY_POLL_BACKOFF_MAX).isSet()
+                        ? context.getProperty(KIMRX_EMPTY_POLL_BACKOFF_MAX).asTimePeriod(TimeUnit.MILLISECONDS) : 0
+        );
+
+        // the mail session is kept between the triggers, a POP3 session only spans the batches of a full mailbox
+        pop3_connection = createConnection(context);
+
+        // retrieval on the trigger thread, parsing and decoding on the workers
+        int decode_threads = context.getProperty(KIMRX_DECODE_THREADS).asInteger();
+        boolean pipelined = context.getProperty(KIMRX_PIPELINED_RECEIVE).asBoolean();
+        String spool_directory = context.getProperty(KIMRX_SPOOL_DIRECTORY).getValue();
+        pipeline = !pipelined ? null : new PipelinedMailReceiver(
+                decode_threads,
+                context.getProperty(KIMRX_PIPELINE_QUEUE_SIZE).asInteger(),
+                spool_directory == null ? null : new File(spool_directory)
+        );
 
+        // the worker pool is only needed if attachments are decoded in parallel, the pipeline decodes them already
+        attachment_decoder = decode_threads > 1 && !pipelined ? new AttachmentDecoder(decode_threads) : null;
+
+        // spooled mails of earlier runs are reused as well
+        String raw_spool_directory = context.getProperty(KIMRX_RAW_SPOOL_DIRECTORY).getValue();
+        raw_spool = raw_spool_directory == null ? null : new RawMessageSpool(
+                Paths.get(raw_spool_directory),
+                context.getProperty(KIMRX_RAW_SPOOL_MAX_SIZE).asDataSize(DataUnit.B).longValue()
+        );
+
+        // chunks of incomplete transfers are kept on disk, they are completed by later polls
+        String chunk_directory = context.getProperty(KIMRX_CHUNK_DIRECTORY).getValue();
+        reassembler = chunk_directory == null ? null : new ChunkReassembler(
+                Paths.get(chunk_directory),
+                context.getProperty(KIMRX_CHUNK_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS)
+        );
+
+        // the filter of previously emitted attachments is restored from disk
+        deduplicator = null;
+        if (context.getProperty(KIMRX_DETECT_DUPLICATES).asBoolean()) {
+            AttachmentDeduplicator new_deduplicator = new AttachmentDeduplicator(
+                    Paths.get(context.getProperty(KIMRX_DUPLICATES_FILTER_FILE).getValue()),
+                    context.getProperty(KIMRX_DUPLICATES_EXPECTED_ENTRIES).asLong(),
+                    context.getProperty(KIMRX_DUPLICATES_FALSE_POSITIVE_RATE).asDouble(),
+                    context.getProperty(KIMRX_DUPLICATES_CACHE_SIZE).asInteger()
+            );
+            new_deduplicator.load();
+            deduplicator = new_deduplicator;
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (pop3_connection != null) {
+            pop3_connection.close();
+            pop3_connection = null;
+        }
+        if (attachment_decoder != null) {
+            attachment_decoder.shutdown();
+            attachment_decoder = null;
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        if (deduplicator != null) {
+            try {
+                deduplicator.save();
+            } catch (IOException e) {
+                getLogger().warn("Failed to store the duplicate filter", e);
+            }
+            deduplicator = null;
+        }
+    }
+
+    POP3Connection createConnection(final ProcessContext context) {
+        String pop3_host = context.getProperty(KIMRX_POP3_SERVER_HOST).getValue();
+        int pop3_port = context.getProperty(KIMRX_POP3_SERVER_PORT).asInteger();
+        String auth_username = context.getProperty(KIMRX_POP3_SERVER_AUTH_USERNAME).getValue();
+        String auth_password = context.getProperty(KIMRX_POP3_SERVER_AUTH_PASSWORD).getValue();
+        boolean allow_insecure_tls = context.getProperty(KIMRX_POP3_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT).asBoolean();
+
+        return new POP3Connection(
+                pop3_host, pop3_port, auth_username, auth_password, allow_insecure_tls,
+                buildReceiveProperties(context)
+        );
+    }
+
+    POP3MailboxPoller createPoller(final KIMMailFilter mail_filter, final boolean most_recent_only, final boolean all_attachments,
+                                   final int batch_max_messages, final long batch_max_bytes) {
+        return new POP3MailboxPoller(mail_filter, most_recent_only, all_attachments, batch_max_messages, batch_max_bytes);
+    }
+
+    static Properties buildReceiveProperties(final ProcessContext context) {
+        boolean spool_mails = context.getProperty(KIMRX_SPOOL_MAILS_TO_DISK).asBoolean();
+        String spool_directory = context.getProperty(KIMRX_SPOOL_DIRECTORY).getValue();
+
+        Properties prop = new Properties();
+        // retrieve headers with TOP n 0, so filtering does not require a full RETR
+        prop.setProperty("mail.pop3.disabletop", "false");
+
+        // stream RETR responses into temporary files; the files are removed when the inbox is closed
+        if (spool_mails) {
+            prop.setProperty("mail.pop3.filecache.enable", "true");
+            if (spool_directory != null) {
+                prop.setProperty("mail.pop3.filecache.dir", spool_directory);
+            }
+        }
+        return prop;
     }
 
     @Override
@@ -209,18 +767,36 @@ public class KIMRXProcessor extends AbstractProcessor {
         // Only for the case of no new mails or errors we re-use the existing flow file.
         FlowFile session_flowFile = session.get();
 
+        // skip the poll while backing off from an empty mailbox; an incoming flow file is an explicit request
+        if (session_flowFile == null && backoff.isPaused(System.currentTimeMillis())) {
+            context.yield();
+            return;
+        }
+
         // obtain descriptor settings
         String mail_from = context.getProperty(KIMRX_MAIL_FROM).getValue();
-        String mail_tag = context.getProperty(KIMRX_TAG).getValue();
         boolean delete_mails = context.getProperty(KIMRX_DELETE_MAILS).asBoolean();
         boolean most_recent_only = context.getProperty(KIMRX_EMIT_MOST_RECENT_ONLY).asBoolean();
         String forced_attachment_filename = context.getProperty(KIMRX_MAIL_ATTACH_FORCE_FILENAME).getValue();
-
-        String pop3_host = context.getProperty(KIMRX_POP3_SERVER_HOST).getValue();
-        int pop3_port = context.getProperty(KIMRX_POP3_SERVER_PORT).asInteger();
-        String auth_username = context.getProperty(KIMRX_POP3_SERVER_AUTH_USERNAME).getValue();
-        String auth_password = context.getProperty(KIMRX_POP3_SERVER_AUTH_PASSWORD).getValue();
-        boolean allow_insecure_tls = context.getProperty(KIMRX_POP3_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT).asBoolean();
+        boolean skip_seen_mails = context.getProperty(KIMRX_SKIP_SEEN_MAILS).asBoolean();
+        int seen_mails_max_entries = context.getProperty(KIMRX_SEEN_MAILS_MAX_ENTRIES).asInteger();
+        int batch_max_messages = context.getProperty(KIMRX_BATCH_MAX_MESSAGES).isSet()
+                ? context.getProperty(KIMRX_BATCH_MAX_MESSAGES).asInteger() : Integer.MAX_VALUE;
+        long batch_max_bytes = context.getProperty(KIMRX_BATCH_MAX_SIZE).isSet()
+                ? context.getProperty(KIMRX_BATCH_MAX_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+        boolean all_attachments = context.getProperty(KIMRX_EXTRACT_ALL_ATTACHMENTS).asBoolean();
+        boolean emit_no_new_mail = context.getProperty(KIMRX_EMIT_NO_NEW_MAIL).asBoolean();
+        long no_new_mail_interval = context.getProperty(KIMRX_NO_NEW_MAIL_MIN_INTERVAL).isSet()
+                ? context.getProperty(KIMRX_NO_NEW_MAIL_MIN_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+        boolean bundle_output = OUTPUT_MODE_ZIP_BUNDLE.equals(context.getProperty(KIMRX_OUTPUT_MODE).getValue());
+        String spool_directory = context.getProperty(KIMRX_SPOOL_DIRECTORY).getValue();
+        long max_mail_size = context.getProperty(KIMRX_MAX_MAIL_SIZE).isSet()
+                ? context.getProperty(KIMRX_MAX_MAIL_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+        long in_memory_mail_size = context.getProperty(KIMRX_IN_MEMORY_MAIL_SIZE).isSet()
+                ? context.getProperty(KIMRX_IN_MEMORY_MAIL_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+        long in_memory_poll_size = context.getProperty(KIMRX_IN_MEMORY_POLL_SIZE).asDataSize(DataUnit.B).longValue();
+        // the most recent mail is searched in the whole mailbox, the batch limits do not apply to it
+        boolean batched = !most_recent_only && (batch_max_messages != Integer.MAX_VALUE || batch_max_bytes != Long.MAX_VALUE);
 
         // setup date and get potential date threshold; Older mails are not deleted even if delete_mails is enabled!
         DateFormat dateInstance = DateFormat.getDateInstance();
@@ -231,142 +807,208 @@ public class KIMRXProcessor extends AbstractProcessor {
             );
         } catch (NullPointerException | ParseException ignored) { }
 
-        // init tag pattern for match
-        Pattern tag_pattern = Pattern.compile(Pattern.quote(mail_tag));
-
-        Properties prop = new Properties();
-        prop.setProperty("mail.pop3.host", pop3_host);
-        prop.setProperty("mail.pop3.port", String.valueOf(pop3_port));
-        prop.setProperty("mail.pop3.ssl.enable", "true");
+        // init sender, tag and date filter
+        KIMMailFilter mail_filter = new KIMMailFilter(mail_from, tag_matcher, ignore_until);
 
-        // set additional flag
-        if (allow_insecure_tls) {
-            prop.setProperty("mail.pop3.ssl.trust", "*");
-        }
+        // the connection and the cache may be replaced by a restart before the commit callbacks run
+        POP3Connection connection = pop3_connection;
+        AttachmentDeduplicator dedup = deduplicator;
+        RawMessageSpool spool = raw_spool;
+        ChunkReassembler chunk_reassembler = reassembler;
 
         Folder inbox = null;
-        Store store = null;
+        List<Path> decoded = null;
+        List<Path> temporary_files = new ArrayList<>();
+        List<RawMessageSpool.FileMessage> file_messages = new ArrayList<>();
+        // mails are only deleted and hashes only remembered once the flow files are committed
+        Set<Message> to_delete = new LinkedHashSet<>();
+        Set<String> pending_hashes = new HashSet<>();
+        Set<String> spooled_uidls = new HashSet<>();
+        List<ChunkReassembler.Transfer> transfers = new ArrayList<>();
+        boolean reconnect = false;
+        boolean empty_poll = false;
+        boolean more_mails = false;
         try {
-            // connect to the pop3 inbox
-            Session pop3_session = Session.getDefaultInstance(prop, new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(auth_username, auth_password);
-                }
-            });
+            // open inbox with read/write if we want to delete mails
+            inbox = connection.openInbox(delete_mails ? Folder.READ_WRITE : Folder.READ_ONLY);
 
-            // connect
-            store = pop3_session.getStore("pop3");
-            store.connect();
+            StateMap state = (skip_seen_mails || batched) ? session.getState(Scope.CLUSTER) : null;
 
-            // pop3 does not support folders, (only uses 'INBOX')
-            inbox = store.getFolder("INBOX");
+            // skip mails that were already inspected in previous polls
+            POP3UIDLState seen_mails = null;
+            if (skip_seen_mails) {
+                seen_mails = POP3UIDLState.fromStateMap(state, seen_mails_max_entries);
+            }
 
-            // open inbox with read/write if we want to delete mails
-            inbox.open(delete_mails ? Folder.READ_WRITE : Folder.READ_ONLY);
+            // continue with the mail the previous batch stopped at
+            String resume_uidl = batched ? state.get(STATE_KEY_RESUME_UIDL) : null;
 
-            // get the list of inbox messages
-            Message[] messages = inbox.getMessages();
+            // collect all matching mails of this batch, sorted from oldest (0) to recent (n)
+            // If only the most recent mail is emitted, it is the only match per tag and the older mails of the tag are superseded.
+            POP3MailboxPoller poller = createPoller(mail_filter, most_recent_only, all_attachments, batch_max_messages, batch_max_bytes);
+            poller.setRawMessageSpool(spool);
+            poller.setPipeline(pipeline);
+            poller.setChunkedTransfers(chunk_reassembler != null);
+            poller.setSizeLimits(max_mail_size, in_memory_mail_size, in_memory_poll_size,
+                    spool_directory == null ? null : new File(spool_directory));
+            List<MailAttachment> matches;
+            try {
+                matches = poller.findMatches((POP3Folder) inbox, seen_mails, resume_uidl);
+            } finally {
+                // raw mails streamed to disk are removed together with the decoded files
+                temporary_files.addAll(poller.getTemporaryFiles());
+                file_messages.addAll(poller.getFileMessages());
+            }
 
-            // collect all matching mails
-            LinkedList<Message> matches = new LinkedList<>();
-            for (int i = 0; i < messages.length; i++) {
-                Message msg = messages[i];
+            // the batch stopped at its limit, the next batch continues on the same POP3 session
+            more_mails = poller.getResumeUidl() != null;
 
-                if (mail_from != null && !mail_from.isBlank() && (msg.getFrom().length == 0 || !msg.getFrom()[0].toString().equals(mail_from))) {
-                    // mail sender address does not match
-                    continue;
-                }
+            // mails too large to be received are reported with their headers only and kept on the server
+            for (Message msg : poller.getOversizedMessages()) {
+                session.transfer(writeOversizeFlowFile(session, (POP3Folder) inbox, msg), RELATIONSHIP_OVERSIZE);
+            }
 
-                if (!tag_pattern.matcher(msg.getSubject()).find()) {
-                    // tag is not part of the subject line
-                    continue;
-                }
+            // chunks of a transfer are stored on disk until the transfer is complete
+            List<MailAttachment> chunks = new ArrayList<>();
+            if (chunk_reassembler != null) {
+                for (Iterator<MailAttachment> iterator = matches.iterator(); iterator.hasNext(); ) {
+                    MailAttachment attachment = iterator.next();
+                    if (!ChunkReassembler.isChunk(attachment.getMessage())) continue;
 
-                if (msg.getSentDate() == null) {
-                    // ignore mails without sent date header
-                    continue;
-                } else if (ignore_until != null && !msg.getSentDate().after(ignore_until)){
-                    // message is older than the provided threshold
-                    continue;
+                    iterator.remove();
+                    if (attachment.getDecodedFile() != null) temporary_files.add(attachment.getDecodedFile());
+                    if (chunk_reassembler.store(attachment)) {
+                        chunks.add(attachment);
+                    } else {
+                        // the mail is not processed, so it is kept on the server for inspection
+                        getLogger().warn("Kept chunk of mail {} on the server, its headers are incomplete or its checksum does not match", attachment.getMessageId());
+                    }
                 }
 
-                if (POP3MessageUtil.findFileAttachmentFromMimeBodyPart(msg.getContent()) == null) {
-                    // the message lacks an attachment
-                    continue;
-                }
+                // also transfers completed by chunks of earlier polls, e.g. if the previous commit failed
+                transfers.addAll(chunk_reassembler.collect());
+            }
 
-                matches.add(msg);
+            // attachments decoded by the pipeline are taken over as they are
+            List<Path> pipelined = new ArrayList<>();
+            for (MailAttachment attachment : matches) {
+                if (attachment.getDecodedFile() != null) pipelined.add(attachment.getDecodedFile());
             }
+            if (!matches.isEmpty() && pipelined.size() == matches.size()) {
+                decoded = pipelined;
+            }
+
+            // a batch that only contained mails without attachment is not an empty mailbox
+            boolean received = !matches.isEmpty() || !chunks.isEmpty() || !transfers.isEmpty();
+            empty_poll = !received && poller.getResumeUidl() == null && poller.getOversizedMessages().isEmpty();
 
-            if (matches.isEmpty()) {
-                // we signal a no-new-mails event
-                session.transfer(session.create(), RELATIONSHIP_NO_NEW_MAIL);
+            if (!received) {
+                // we signal a no-new-mails event, if desired and not signaled just before
+                long now = System.currentTimeMillis();
+                if (emit_no_new_mail && now - last_no_new_mail_millis >= no_new_mail_interval) {
+                    session.transfer(session.create(), RELATIONSHIP_NO_NEW_MAIL);
+                    last_no_new_mail_millis = now;
+                }
             } else {
-                // sort from oldest (0) to recent (n)
-                matches.sort((m1, m2) -> {
-                    try {
-                        return m1.getSentDate().compareTo(m2.getSentDate());
-                    } catch (MessagingException e) {
-                        return 0;
+                if (bundle_output) {
+                    // all attachments of the poll are packed into a single flow file per relationship
+                    Map<Relationship, List<MailAttachment>> bundles = new LinkedHashMap<>();
+                    for (MailAttachment attachment : matches) {
+                        for (Relationship target : getTagRelationships(mail_filter.matchTags(attachment.getMessage()))) {
+                            bundles.computeIfAbsent(target, r -> new ArrayList<>()).add(attachment);
+                        }
+                    }
+                    for (Map.Entry<Relationship, List<MailAttachment>> entry : bundles.entrySet()) {
+                        List<MailAttachment> entries = entry.getValue();
+                        FlowFile bundle = session.create();
+                        bundle = session.write(bundle, out -> MailAttachmentBundle.writeZip(out, entries, forced_attachment_filename));
+                        bundle = session.putAttribute(bundle, "filename", bundle.getAttribute(CoreAttributes.UUID.key()) + ".zip");
+                        bundle = session.putAttribute(bundle, CoreAttributes.MIME_TYPE.key(), "application/zip");
+                        bundle = session.putAttribute(bundle, ATTRIBUTE_BUNDLE_ENTRIES, String.valueOf(entries.size()));
+                        session.transfer(bundle, entry.getKey());
+                    }
+                } else {
+                    // decode several attachments concurrently, a single one is decoded while it is written
+                    if (decoded == null && attachment_decoder != null && matches.size() > 1) {
+                        decoded = attachment_decoder.decodeAll(matches, spool_directory == null ? null : new File(spool_directory));
                     }
-                });
 
-                for (int i = 0; i<matches.size(); i++) {
-                    Message msg = matches.get(i);
-                    if (most_recent_only && i < (matches.size() - 1)) {
-                        // We only want to emit the most recent mail, so we ignore the previous mails
-                    } else {
-                        // Extract the attachment
-                        MimeBodyPart attachment_part = POP3MessageUtil.findFileAttachmentFromMimeBodyPart(msg.getContent());
-                        String filename = attachment_part.getFileName();
-                        if (filename == null && forced_attachment_filename != null) {
-                            filename = forced_attachment_filename;
-                        } else if (filename == null && forced_attachment_filename == null) {
-                            filename = "data.bin";
-                        }
+                    for (int i = 0; i < matches.size(); i++) {
+                        // emit the flow file, the content is hashed while it is written if duplicates are detected
+                        FlowFile flowFile = writeAttachmentFlowFile(session, matches.get(i), forced_attachment_filename,
+                                decoded == null ? null : decoded.get(i), dedup != null);
 
-                        // write to new flow file
-                        FlowFile flowFile = session.create();
-                        session.write(flowFile, outputStream -> {
-                            try {
-                                InputStream is = attachment_part.getInputStream();
-                                byte[] buf = new byte[8192];
-                                int length;
-                                while ((length = is.read(buf)) != -1) {
-                                    outputStream.write(buf, 0, length);
-                                }
-                            } catch (MessagingException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-
-                        // set filename and sent date
-                        session.putAttribute(flowFile, "filename", filename);
-                        session.putAttribute(flowFile, "sent", DateFormat.getDateInstance().format(msg.getSentDate()));
-                        // emit the flow file
-                        session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+                        routeAttachmentFlowFile(session, flowFile, mail_filter.matchTags(matches.get(i).getMessage()), dedup, pending_hashes);
                     }
+                }
+
+                // reassembled transfers are emitted as flow files of their own
+                for (ChunkReassembler.Transfer transfer : transfers) {
+                    emitTransfer(session, chunk_reassembler, transfer, mail_filter, dedup, pending_hashes);
+                }
+
+                // the spooled copies of the emitted mails are not needed anymore after the commit
+                List<MailAttachment> processed = new ArrayList<>(matches);
+                processed.addAll(chunks);
+                if (spool != null) {
+                    for (MailAttachment attachment : processed) {
+                        spooled_uidls.add(((POP3Folder) inbox).getUID(attachment.getMessage()));
+                    }
+                }
 
-                    // remove mails if desired
-                    if (delete_mails) {
-                        msg.setFlag(Flags.Flag.DELETED, true);
+                // remove mails if desired, superseded mails are deleted without being retrieved
+                if (delete_mails) {
+                    for (MailAttachment attachment : matches) {
+                        to_delete.add(attachment.getMessage());
                     }
+                    to_delete.addAll(poller.getSupersededMessages());
+                }
+                // Stored chunks are always deleted, their content is kept on disk. A chunk left on the server would
+                // be stored again by the next poll and its transfer would be reassembled and emitted once more.
+                for (MailAttachment attachment : chunks) {
+                    to_delete.add(attachment.getMessage());
                 }
             }
 
-            if (inbox.isOpen()) inbox.close();
-            if (store.isConnected()) store.close();
+            if (state != null) {
+                Map<String, String> new_state = new HashMap<>();
+                if (seen_mails != null) {
+                    new_state.putAll(seen_mails.toStateMap());
+                    if (seen_mails.isOverCapacity()) {
+                        getLogger().warn("The state holds {} seen mails, more than the configured maximum of {}. Delete processed mails from the server "
+                                + "to keep the state small.", seen_mails.size(), seen_mails_max_entries);
+                    }
+                }
+                if (poller.getResumeUidl() != null) {
+                    new_state.put(STATE_KEY_RESUME_UIDL, poller.getResumeUidl());
+                }
+                session.setState(new_state, Scope.CLUSTER);
+            }
 
         } catch (MessagingException | IOException e) {
-            // signal a failure event
+            // signal a failure event; the mails are kept on the server and received again
             FlowFile flowFile = session.create();
             session.penalize(flowFile);
             session.transfer(flowFile, RELATIONSHIP_FAILURE);
+            to_delete.clear();
+            transfers.forEach(transfer -> chunk_reassembler.release(transfer, false));
+            transfers.clear();
+            reconnect = true;
+        } catch (RuntimeException e) {
+            // the session is rolled back by the framework, so nothing must be deleted
+            transfers.forEach(transfer -> chunk_reassembler.release(transfer, false));
+            releaseAfterCommit(connection, inbox, Collections.emptyList(), true, false, concat(decoded, temporary_files));
+            throw e;
         } finally {
-            // close open sessions
-            try { if (inbox != null && inbox.isOpen()) { inbox.close(true);} } catch (MessagingException ignored) {}
-            try { if (store != null && store.isConnected()) { store.close(); } } catch (MessagingException ignored) {}
+            // the attachments are written to the flow files, the files of the mails are not read anymore
+            closeFiles(file_messages);
+        }
+
+        // back off exponentially while the mailbox stays empty, return to the run schedule on the first mail
+        if (empty_poll) {
+            backoff.onEmptyPoll(System.currentTimeMillis());
+        } else if (!reconnect) {
+            backoff.reset();
         }
 
         // cleanup session flow file if it was provided
@@ -374,6 +1016,227 @@ public class KIMRXProcessor extends AbstractProcessor {
             session.remove(session_flowFile);
         }
 
-        session.commit();
+        // The inbox stays open until the commit is done. Only then the DELE commands are sent and committed
+        // with the QUIT of the inbox, so a failed commit leaves all mails on the server (at-least-once).
+        final Folder opened_inbox = inbox;
+        final List<Path> decoded_files = concat(decoded, temporary_files);
+        final boolean invalidate = reconnect;
+        final boolean keep_session = more_mails && !reconnect;
+        session.commitAsync(() -> {
+            releaseAfterCommit(connection, opened_inbox, to_delete, invalidate, keep_session, decoded_files);
+            if (spool != null) spooled_uidls.forEach(spool::remove);
+            // the chunks of emitted transfers are not needed anymore
+            transfers.forEach(transfer -> chunk_reassembler.release(transfer, true));
+
+            // the filter only contains hashes of committed flow files
+            if (dedup != null && !pending_hashes.isEmpty()) {
+                pending_hashes.forEach(dedup::add);
+                try {
+                    dedup.save();
+                } catch (IOException e) {
+                    getLogger().warn("Failed to store the duplicate filter", e);
+                }
+            }
+        }, failure -> {
+            getLogger().error("Failed to commit the received mails, the mails are kept on the server", failure);
+            releaseAfterCommit(connection, opened_inbox, Collections.emptyList(), true, false, decoded_files);
+            transfers.forEach(transfer -> chunk_reassembler.release(transfer, false));
+        });
+    }
+
+    private static FlowFile writeOversizeFlowFile(final ProcessSession session, final POP3Folder inbox, final Message msg) throws MessagingException {
+        // only the headers retrieved with TOP are used, the content is never downloaded
+        FlowFile flowFile = session.create();
+        Address[] from = msg.getFrom();
+        Date sent_date = msg.getSentDate();
+        if (sent_date != null) {
+            flowFile = session.putAttribute(flowFile, "sent", DateFormat.getDateInstance().format(sent_date));
+        }
+        if (from != null && from.length > 0) {
+            flowFile = session.putAttribute(flowFile, ATTRIBUTE_MAIL_FROM, from[0].toString());
+        }
+        if (msg.getSubject() != null) {
+            flowFile = session.putAttribute(flowFile, ATTRIBUTE_MAIL_SUBJECT, msg.getSubject());
+        }
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_MAIL_SIZE, String.valueOf(msg.getSize()));
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_MESSAGE_ID, POP3MessageUtil.getMessageId(msg));
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_MAIL_UIDL, inbox.getUID(msg));
+        return flowFile;
+    }
+
+    private static List<Path> concat(final List<Path> decoded_files, final List<Path> temporary_files) {
+        if (temporary_files.isEmpty()) return decoded_files;
+        List<Path> files = new ArrayList<>(temporary_files);
+        if (decoded_files != null) files.addAll(decoded_files);
+        return files;
+    }
+
+    private void emitTransfer(final ProcessSession session, final ChunkReassembler chunk_reassembler, final ChunkReassembler.Transfer transfer,
+                              final KIMMailFilter mail_filter, final AttachmentDeduplicator dedup, final Set<String> pending_hashes) throws IOException {
+        FlowFile flowFile = session.create();
+        flowFile = session.putAttribute(flowFile, "filename", transfer.getFileName());
+        flowFile = session.putAttribute(flowFile, "sent", DateFormat.getDateInstance().format(transfer.getSentDate()));
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_TRANSFER_ID, transfer.getTransferId());
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_TRANSFER_CHUNKS, String.valueOf(transfer.getChunkCount()));
+
+        if (!transfer.isComplete() || !chunk_reassembler.assemble(transfer)) {
+            // timed out or corrupted, the chunks are discarded once the failure is committed
+            getLogger().warn("Discarded chunked transfer {} with {} of {} chunks, it is incomplete or its checksum does not match",
+                    transfer.getTransferId(), transfer.getReceivedChunks(), transfer.getChunkCount());
+            flowFile = session.putAttribute(flowFile, ATTRIBUTE_TRANSFER_RECEIVED_CHUNKS, String.valueOf(transfer.getReceivedChunks()));
+            session.transfer(session.penalize(flowFile), RELATIONSHIP_FAILURE);
+            return;
+        }
+
+        // the content was verified against the checksum of the sender, so its hash is known already
+        flowFile = session.importFrom(transfer.getAssembledFile(), false, flowFile);
+        if (dedup != null) {
+            flowFile = session.putAttribute(flowFile, ATTRIBUTE_CONTENT_HASH, transfer.getSha256());
+        }
+        routeAttachmentFlowFile(session, flowFile, mail_filter.matchTags(transfer.getSubject()), dedup, pending_hashes);
+    }
+
+    private void routeAttachmentFlowFile(final ProcessSession session, FlowFile flowFile, final Set<String> tag_keys,
+                                         final AttachmentDeduplicator dedup, final Set<String> pending_hashes) {
+        if (dedup != null) {
+            String content_hash = flowFile.getAttribute(ATTRIBUTE_CONTENT_HASH);
+            if (dedup.isDuplicate(content_hash) || !pending_hashes.add(content_hash)) {
+                // the content is dropped again, only the attributes are forwarded
+                FlowFile duplicate = session.create(flowFile);
+                session.remove(flowFile);
+                session.transfer(duplicate, RELATIONSHIP_DUPLICATE);
+                return;
+            }
+            if (dedup.mightBeDuplicate(content_hash)) {
+                // a hit of the filter alone may be a false positive, so the content is kept
+                flowFile = session.putAttribute(flowFile, ATTRIBUTE_DUPLICATE_SUSPECTED, "true");
+            }
+        }
+
+        // a mail with several tags is emitted to each of their relationships
+        List<Relationship> targets = getTagRelationships(tag_keys);
+        for (int t = 1; t < targets.size(); t++) {
+            session.transfer(session.clone(flowFile), targets.get(t));
+        }
+        session.transfer(flowFile, targets.get(0));
+    }
+
+    private List<Relationship> getTagRelationships(final Set<String> tag_keys) {
+        Map<String, Relationship> current_tag_relationships = tag_relationships;
+        List<Relationship> targets = new ArrayList<>();
+        for (String key : tag_keys) {
+            Relationship target = RELATIONSHIP_SUCCESS.getName().equals(key) ? RELATIONSHIP_SUCCESS : current_tag_relationships.get(key);
+            if (target != null) targets.add(target);
+        }
+        // the mail passed the filter, so at least one tag matched
+        if (targets.isEmpty()) targets.add(RELATIONSHIP_SUCCESS);
+        return targets;
+    }
+
+    private void releaseAfterCommit(final POP3Connection connection, final Folder inbox, final Collection<Message> to_delete,
+                                    final boolean invalidate, final boolean keep_session, final List<Path> decoded_files) {
+        // POP3 flags are local only, the DELE commands are sent as one batch when the inbox is closed
+        boolean expunge = false;
+        try {
+            for (Message msg : to_delete) {
+                msg.setFlag(Flags.Flag.DELETED, true);
+            }
+            expunge = !to_delete.isEmpty();
+        } catch (MessagingException e) {
+            getLogger().warn("Failed to flag the received mails for deletion, the mails are kept on the server", e);
+        }
+
+        if (keep_session) {
+            // the next batch continues on the session, its QUIT commits the deletions of all batches
+            connection.keepInbox(inbox, expunge);
+        } else {
+            // close the inbox, QUIT commits the deletions and ends the POP3 session
+            connection.releaseInbox(inbox, expunge);
+        }
+        // do not reuse a connection in an unknown state
+        if (invalidate) connection.invalidate();
+        // decoded files are copied into the content repository, remove what is left
+        if (decoded_files != null) deleteFiles(decoded_files);
+    }
+
+    static FlowFile writeAttachmentFlowFile(final ProcessSession session, final MailAttachment attachment,
+                                            final String forced_attachment_filename) throws IOException, MessagingException {
+        return writeAttachmentFlowFile(session, attachment, forced_attachment_filename, null, false);
+    }
+
+    static FlowFile writeAttachmentFlowFile(final ProcessSession session, final MailAttachment attachment,
+                                            final String forced_attachment_filename, final Path decoded_file,
+                                            final boolean hash_content) throws IOException, MessagingException {
+        // Reuse the attachment located during filtering
+        String filename = attachment.getFileName();
+        if (filename == null && forced_attachment_filename != null) {
+            filename = forced_attachment_filename;
+        } else if (filename == null && forced_attachment_filename == null) {
+            filename = "data.bin";
+        }
+
+        // stream the decoded attachment into a new flow file, or take over the file decoded in advance
+        FlowFile flowFile = session.create();
+        String content_hash = null;
+        if (hash_content) {
+            // the hash is calculated on the fly, so the content is still read only once
+            MessageDigest digest = newSha256Digest();
+            try (InputStream is = new DigestInputStream(
+                    decoded_file != null ? Files.newInputStream(decoded_file) : attachment.getInputStream(), digest)) {
+                flowFile = session.importFrom(is, flowFile);
+            }
+            content_hash = toHex(digest.digest());
+        } else if (decoded_file != null) {
+            flowFile = session.importFrom(decoded_file, false, flowFile);
+        } else {
+            try (InputStream is = attachment.getInputStream()) {
+                flowFile = session.importFrom(is, flowFile);
+            }
+        }
+
+        // set filename and sent date
+        flowFile = session.putAttribute(flowFile, "filename", filename);
+        flowFile = session.putAttribute(flowFile, "sent", DateFormat.getDateInstance().format(attachment.getMessage().getSentDate()));
+
+        // attachments of the same mail can be correlated by the message id
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_MESSAGE_ID, attachment.getMessageId());
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_ATTACHMENT_INDEX, String.valueOf(attachment.getIndex()));
+        flowFile = session.putAttribute(flowFile, ATTRIBUTE_ATTACHMENT_COUNT, String.valueOf(attachment.getCount()));
+        if (content_hash != null) {
+            flowFile = session.putAttribute(flowFile, ATTRIBUTE_CONTENT_HASH, content_hash);
+        }
+        return flowFile;
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void closeFiles(final List<? extends Closeable> files) {
+        for (Closeable file : files) {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static void deleteFiles(final List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {}
+        }
     }
 }
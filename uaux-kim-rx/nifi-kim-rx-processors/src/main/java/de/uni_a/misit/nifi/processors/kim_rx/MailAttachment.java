@@ -0,0 +1,102 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+public class MailAttachment {
+    // written by KIM TX for compressed attachments
+    public static final String HEADER_CONTENT_CODEC = "X-KIM-Content-Codec";
+    public static final String CODEC_GZIP = "gzip";
+
+    private final Message message;
+    private final MimeBodyPart part;
+    private final String filename;
+    private final String encoding;
+    private final String codec;
+    private final String message_id;
+    private final int index;
+    private final int count;
+    private volatile Path decoded_file = null;
+
+    public MailAttachment(Message message, MimeBodyPart part, String message_id, int index, int count) throws MessagingException {
+        this.message = message;
+        this.part = part;
+        this.message_id = message_id;
+        this.index = index;
+        this.count = count;
+        // read the part headers once, so later steps do not need to touch the MIME structure again
+        this.encoding = part.getEncoding();
+        String[] codec_header = part.getHeader(HEADER_CONTENT_CODEC);
+        this.codec = codec_header == null || codec_header.length == 0 ? null : codec_header[0].trim().toLowerCase();
+
+        // compressed attachments are emitted decompressed, with the file name of the sender
+        String part_filename = part.getFileName();
+        if (isCompressed() && part_filename != null && part_filename.endsWith(".gz")) {
+            part_filename = part_filename.substring(0, part_filename.length() - 3);
+        }
+        this.filename = part_filename;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public MimeBodyPart getPart() {
+        return part;
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public boolean isCompressed() {
+        // unknown codecs are emitted as they are
+        return CODEC_GZIP.equals(codec);
+    }
+
+    public String getMessageId() {
+        return message_id;
+    }
+
+    public int getIndex() {
+        // position of the attachment within its message, starting with 0
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Path getDecodedFile() {
+        return decoded_file;
+    }
+
+    public void setDecodedFile(Path decoded_file) {
+        // the content was decoded in advance, e.g. by a worker thread
+        this.decoded_file = decoded_file;
+    }
+
+    public InputStream getInputStream() throws IOException, MessagingException {
+        if (decoded_file != null) {
+            return Files.newInputStream(decoded_file);
+        }
+        // decodes the transfer encoding and decompresses while reading
+        InputStream is = part.getInputStream();
+        return isCompressed() ? new GZIPInputStream(is, 65536) : is;
+    }
+}
@@ -0,0 +1,87 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MailAttachmentBundle {
+    public static final String INDEX_ENTRY = "index.json";
+
+    public static void writeZip(OutputStream out, List<MailAttachment> attachments, String forced_attachment_filename) throws IOException {
+        // the attachments are streamed one after another into the archive, nothing is buffered in memory
+        ZipOutputStream zip = new ZipOutputStream(out);
+        StringBuilder index = new StringBuilder("[");
+        byte[] buf = new byte[8192];
+        try {
+            for (int i = 0; i < attachments.size(); i++) {
+                MailAttachment attachment = attachments.get(i);
+                Message msg = attachment.getMessage();
+                String filename = attachment.getFileName() != null ? attachment.getFileName()
+                        : forced_attachment_filename != null ? forced_attachment_filename : "data.bin";
+
+                // the entries are numbered, as several mails may carry attachments with the same name
+                String entry_name = String.format("%05d_%s", i, filename.replaceAll("[/\\\\]", "_"));
+                zip.putNextEntry(new ZipEntry(entry_name));
+                try (InputStream is = attachment.getInputStream()) {
+                    int length;
+                    while ((length = is.read(buf)) != -1) {
+                        zip.write(buf, 0, length);
+                    }
+                }
+                zip.closeEntry();
+
+                Address[] from = msg.getFrom();
+                index.append(i == 0 ? "\n" : ",\n")
+                        .append("  {\"entry\": ").append(quote(entry_name))
+                        .append(", \"filename\": ").append(quote(filename))
+                        .append(", \"sent\": ").append(quote(DateFormat.getDateInstance().format(msg.getSentDate())))
+                        .append(", \"from\": ").append(quote(from == null || from.length == 0 ? null : from[0].toString()))
+                        .append(", \"message_id\": ").append(quote(attachment.getMessageId()))
+                        .append(", \"attachment_index\": ").append(attachment.getIndex())
+                        .append(", \"attachment_count\": ").append(attachment.getCount())
+                        .append("}");
+            }
+            index.append(attachments.isEmpty() ? "]\n" : "\n]\n");
+
+            // the metadata of all entries is written last, after the content is known to be complete
+            zip.putNextEntry(new ZipEntry(INDEX_ENTRY));
+            Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+            writer.write(index.toString());
+            writer.flush();
+            zip.closeEntry();
+        } catch (MessagingException e) {
+            throw new IOException(e);
+        }
+        // finish the archive without closing the underlying stream
+        zip.finish();
+    }
+
+    private static String quote(String value) {
+        if (value == null) return "null";
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+                    else quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
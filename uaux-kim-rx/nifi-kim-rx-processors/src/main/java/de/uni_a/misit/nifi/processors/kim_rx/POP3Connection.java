@@ -0,0 +1,126 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Authenticator;
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import org.eclipse.angus.mail.util.MailSSLSocketFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+
+public class POP3Connection {
+    // A kept session is ended if the next poll does not start within this period. It stays well below the
+    // autologout timer of at least 10 minutes RFC 1939 demands, which would drop the flagged deletions.
+    static final long KEEP_ALIVE_MILLIS = 60000;
+
+    private final Session session;
+
+    private Store store = null;
+    private Folder kept_inbox = null;
+    private long kept_since = 0;
+    // deletions flagged in the current POP3 session, QUIT commits them
+    private boolean deletions_flagged = false;
+
+    public POP3Connection(String host, int port, String auth_username, String auth_password, boolean allow_insecure_tls,
+                          Properties additional_properties) {
+        Properties prop = new Properties();
+        prop.setProperty("mail.pop3.host", host);
+        prop.setProperty("mail.pop3.port", String.valueOf(port));
+        prop.setProperty("mail.pop3.ssl.enable", "true");
+
+        // set additional flag
+        if (allow_insecure_tls) {
+            prop.setProperty("mail.pop3.ssl.trust", "*");
+        }
+
+        // A single socket factory keeps a single TLS session cache, so reconnects can resume the TLS session
+        // instead of performing a full handshake.
+        try {
+            MailSSLSocketFactory socket_factory = new MailSSLSocketFactory();
+            socket_factory.setTrustAllHosts(allow_insecure_tls);
+            prop.put("mail.pop3.ssl.socketFactory", socket_factory);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (additional_properties != null) {
+            prop.putAll(additional_properties);
+        }
+
+        // a dedicated session, getDefaultInstance would ignore changed properties after the first call
+        this.session = Session.getInstance(prop, new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(auth_username, auth_password);
+            }
+        });
+    }
+
+    public synchronized Folder openInbox(int mode) throws MessagingException {
+        // A batch that stopped at the batch limit keeps its POP3 session, the maildrop fixed at login still
+        // holds the remaining mails. The next batch continues on it without a new TLS handshake and login.
+        if (kept_inbox != null) {
+            Folder inbox = kept_inbox;
+            kept_inbox = null;
+            // isOpen checks the connection with NOOP
+            if (inbox.getMode() == mode && System.currentTimeMillis() - kept_since <= KEEP_ALIVE_MILLIS && inbox.isOpen()) {
+                return inbox;
+            }
+            releaseInbox(inbox, false);
+        }
+
+        // Otherwise the session is only opened when the poll starts. Idling authenticated between two polls
+        // would hide new mails until the next poll and lock out other clients of the mailbox.
+        close();
+        store = session.getStore("pop3");
+        store.connect();
+
+        // pop3 does not support folders, (only uses 'INBOX')
+        Folder inbox = store.getFolder("INBOX");
+        inbox.open(mode);
+        return inbox;
+    }
+
+    public synchronized void keepInbox(Folder inbox, boolean deletions_flagged) {
+        // The flagged deletions of the batch are committed together with those of the following batches,
+        // when the session ends. If the server drops the session before, the mails are received again.
+        this.kept_inbox = inbox;
+        this.kept_since = System.currentTimeMillis();
+        this.deletions_flagged |= deletions_flagged;
+    }
+
+    public synchronized void releaseInbox(Folder inbox, boolean expunge) {
+        // POP3 only commits deletions with QUIT, which also ends the server connection of the folder.
+        // Deletions flagged by earlier batches of a kept session are committed as well.
+        try {
+            if (inbox != null && inbox.isOpen()) inbox.close(expunge || deletions_flagged);
+        } catch (MessagingException ignored) {}
+
+        // The store is not asked whether it is still connected, it would log in again right away.
+        // Only the session and its TLS session cache are kept for the next poll.
+        close();
+    }
+
+    public synchronized void invalidate() {
+        // used after errors, the next inbox is opened on a fresh connection
+        close();
+    }
+
+    public synchronized void close() {
+        // a kept session is ended with QUIT, so the deletions of its batches are committed
+        if (kept_inbox != null) {
+            Folder inbox = kept_inbox;
+            kept_inbox = null;
+            releaseInbox(inbox, false);
+            return;
+        }
+        try {
+            if (store != null) store.close();
+        } catch (MessagingException ignored) {}
+        store = null;
+        deletions_flagged = false;
+    }
+}
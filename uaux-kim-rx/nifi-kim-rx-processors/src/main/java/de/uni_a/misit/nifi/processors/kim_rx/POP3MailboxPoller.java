@@ -0,0 +1,377 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.UIDFolder;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class POP3MailboxPoller {
+    // mails without Date header are considered older than all dated mails
+    private static final Comparator<Date> SENT_DATE_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    private final KIMMailFilter mail_filter;
+    private final boolean most_recent_only;
+    private final boolean all_attachments;
+    private final int max_messages;
+    private final long max_bytes;
+
+    private RawMessageSpool spool = null;
+    private PipelinedMailReceiver pipeline = null;
+    private POP3Folder inbox = null;
+    private boolean chunked_transfers = false;
+
+    // size-aware receive, disabled by default
+    private long max_mail_size = Long.MAX_VALUE;
+    private long in_memory_mail_size = Long.MAX_VALUE;
+    private long in_memory_poll_size = Long.MAX_VALUE;
+    private File temporary_directory = null;
+    private long in_memory_bytes = 0;
+
+    private String resume_uidl = null;
+    private List<Message> superseded = new ArrayList<>();
+    private List<Message> oversized = new ArrayList<>();
+    private List<Path> temporary_files = new ArrayList<>();
+    private List<RawMessageSpool.FileMessage> file_messages = new ArrayList<>();
+
+    public POP3MailboxPoller(KIMMailFilter mail_filter, boolean most_recent_only) {
+        this(mail_filter, most_recent_only, false, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public POP3MailboxPoller(KIMMailFilter mail_filter, boolean most_recent_only, boolean all_attachments,
+                             int max_messages, long max_bytes) {
+        this.mail_filter = mail_filter;
+        this.most_recent_only = most_recent_only;
+        this.all_attachments = all_attachments;
+        // only a single mail is retrieved for the most recent mail, so there is nothing to limit
+        this.max_messages = most_recent_only ? Integer.MAX_VALUE : max_messages;
+        this.max_bytes = most_recent_only ? Long.MAX_VALUE : max_bytes;
+    }
+
+    public List<MailAttachment> findMatches(POP3Folder inbox, POP3UIDLState seen_mails) throws MessagingException, IOException {
+        return findMatches(inbox, seen_mails, null);
+    }
+
+    public List<MailAttachment> findMatches(POP3Folder inbox, POP3UIDLState seen_mails, String resume_at_uidl) throws MessagingException, IOException {
+        this.inbox = inbox;
+
+        // get the list of inbox messages
+        Message[] messages = inbox.getMessages();
+
+        // skip mails that were already inspected in previous polls
+        // The whole listing is used, so only UIDLs of mails that are gone from the server are forgotten.
+        if (seen_mails != null) {
+            messages = filterUnseenMessages(inbox, messages, seen_mails);
+        }
+
+        // continue where the previous batch stopped
+        if (resume_at_uidl != null) {
+            messages = skipToMessage(inbox, messages, resume_at_uidl);
+        }
+
+        // the message sizes of the LIST command are used to plan the poll before anything is retrieved
+        boolean limited = max_messages != Integer.MAX_VALUE || max_bytes != Long.MAX_VALUE;
+        boolean size_aware = max_mail_size != Long.MAX_VALUE || in_memory_mail_size != Long.MAX_VALUE;
+        if (limited || size_aware) {
+            FetchProfile profile = new FetchProfile();
+            profile.add(FetchProfile.Item.SIZE);
+            profile.add(UIDFolder.FetchProfileItem.UID);
+            inbox.fetch(messages, profile);
+        }
+
+        // first phase: filter on the mail headers only
+        // Headers are retrieved lazily (TOP n 0), so mails after the end of the batch are not touched at all.
+        LinkedList<Message> candidates = new LinkedList<>();
+        List<Message> chunk_candidates = new ArrayList<>();
+        long batch_bytes = 0;
+        resume_uidl = null;
+        oversized = new ArrayList<>();
+        in_memory_bytes = 0;
+        for (int i = 0; i < messages.length; i++) {
+            Message msg = messages[i];
+
+            // the headers are evaluated once, the size comes from the LIST command
+            boolean header_match = mail_filter.matchesHeaders(msg);
+            if (header_match && size_aware && msg.getSize() > max_mail_size) {
+                // too large to be received at all, only its headers are reported
+                oversized.add(msg);
+            } else if (header_match) {
+                if (most_recent_only && chunked_transfers && ChunkReassembler.isChunk(msg)) {
+                    // chunks of a transfer are all needed, a more recent mail does not supersede them
+                    chunk_candidates.add(msg);
+                } else {
+                    int size = limited ? Math.max(0, msg.getSize()) : 0;
+                    if (candidates.size() >= max_messages || (!candidates.isEmpty() && batch_bytes + size > max_bytes)) {
+                        // the batch is full, the next batch starts with this mail
+                        resume_uidl = inbox.getUID(msg);
+                        break;
+                    }
+                    candidates.add(msg);
+                    batch_bytes += size;
+                }
+            }
+
+            // the mail is inspected now, no matter whether it matches or not
+            if (seen_mails != null) {
+                seen_mails.add(inbox.getUID(msg));
+            }
+        }
+
+        // second phase: retrieve the full message of the remaining candidates
+        // The located attachment is kept, so the MIME structure is only walked once per message.
+        superseded = new ArrayList<>();
+        if (most_recent_only) {
+            List<MailAttachment> matches = findMostRecentMatches(candidates);
+            for (Message msg : chunk_candidates) {
+                matches.addAll(findAttachments(msg));
+            }
+            return matches;
+        }
+
+        List<MailAttachment> matches = new ArrayList<>();
+        if (pipeline != null) {
+            // retrieval and extraction overlap, mails without attachment simply yield nothing
+            matches.addAll(pipeline.receive(inbox, candidates, all_attachments, spool));
+        } else {
+            for (Message msg : candidates) {
+                List<MailAttachment> attachments = findAttachments(msg);
+                if (attachments.isEmpty()) {
+                    // the message lacks an attachment, release the retrieved content but keep the headers
+                    ((POP3Message) msg).invalidate(false);
+                    continue;
+                }
+
+                matches.addAll(attachments);
+            }
+        }
+
+        // sort from oldest (0) to recent (n), the sort is stable and keeps the attachment order of a message
+        matches.sort((m1, m2) -> {
+            try {
+                return m1.getMessage().getSentDate().compareTo(m2.getMessage().getSentDate());
+            } catch (MessagingException e) {
+                return 0;
+            }
+        });
+        return matches;
+    }
+
+    List<MailAttachment> findMostRecentMatches(List<Message> candidates) throws MessagingException {
+        // The most recent mail is selected per tag, so every relationship receives its own most recent file.
+        // The tags and dates are read from the headers, only the selected mails are retrieved.
+        Map<Message, Set<String>> tags = new HashMap<>();
+        Map<Message, Date> sent_dates = new HashMap<>();
+        for (Message msg : candidates) {
+            tags.put(msg, mail_filter.matchTags(msg));
+            sent_dates.put(msg, msg.getSentDate());
+        }
+
+        Map<Message, List<MailAttachment>> retrieved = new HashMap<>();
+        Set<Message> selected = new HashSet<>();
+        Set<String> open_tags = null;
+        do {
+            // one pass keeps the newest mail per tag; on equal dates, the later mail in the maildrop wins
+            // Mails retrieved without attachment are skipped, so another pass finds the next newest mail of their tags.
+            Map<String, Message> newest = new LinkedHashMap<>();
+            for (Message msg : candidates) {
+                List<MailAttachment> attachments = retrieved.get(msg);
+                if (attachments != null && attachments.isEmpty()) continue;
+
+                for (String tag_key : tags.get(msg)) {
+                    if (open_tags != null && !open_tags.contains(tag_key)) continue;
+                    Message current = newest.get(tag_key);
+                    if (current == null || SENT_DATE_ORDER.compare(sent_dates.get(msg), sent_dates.get(current)) >= 0) {
+                        newest.put(tag_key, msg);
+                    }
+                }
+            }
+
+            open_tags = new HashSet<>();
+            for (Map.Entry<String, Message> entry : newest.entrySet()) {
+                Message msg = entry.getValue();
+
+                // a mail carrying several tags is retrieved only once
+                List<MailAttachment> attachments = retrieved.get(msg);
+                if (attachments == null) {
+                    attachments = findAttachments(msg);
+                    if (attachments.isEmpty()) {
+                        // the message lacks an attachment, continue with the next newest mail of the tag
+                        ((POP3Message) msg).invalidate(false);
+                    }
+                    retrieved.put(msg, attachments);
+                }
+                if (attachments.isEmpty()) {
+                    open_tags.add(entry.getKey());
+                } else {
+                    selected.add(msg);
+                }
+            }
+        } while (!open_tags.isEmpty());
+
+        // A mail that was not looked at is older than the selected mail of each of its tags, so it is superseded.
+        // The selected mails are emitted from oldest to most recent.
+        List<Message> emitted = new ArrayList<>();
+        for (Message msg : candidates) {
+            if (selected.contains(msg)) {
+                emitted.add(msg);
+            } else if (!retrieved.containsKey(msg)) {
+                superseded.add(msg);
+            }
+        }
+        emitted.sort(Comparator.comparing(sent_dates::get, SENT_DATE_ORDER));
+
+        List<MailAttachment> matches = new ArrayList<>();
+        for (Message msg : emitted) {
+            matches.addAll(retrieved.get(msg));
+        }
+        return matches;
+    }
+
+    private List<MailAttachment> findAttachments(Message msg) throws MessagingException {
+        // with a spool, the mail is parsed from its local copy and only downloaded if it is not spooled yet
+        Part content = msg;
+        if (spool != null) {
+            try {
+                RawMessageSpool.FileMessage spooled = spool.retrieve(inbox.getUID(msg), msg);
+                file_messages.add(spooled);
+                content = spooled;
+            } catch (IOException e) {
+                throw new MessagingException("Failed to spool mail", e);
+            }
+            // the copy is complete, the downloaded content is not needed anymore
+            ((POP3Message) msg).invalidate(false);
+        } else if (isStreamedToDisk(msg)) {
+            // large mails are streamed from the RETR response into a file and parsed from there
+            try {
+                Path raw_file = RawMessageSpool.storeTemporary(msg, temporary_directory);
+                temporary_files.add(raw_file);
+                // parsed from a shared stream over the file, the size of the mail is not limited
+                RawMessageSpool.FileMessage streamed = RawMessageSpool.load(raw_file);
+                file_messages.add(streamed);
+                content = streamed;
+            } catch (IOException e) {
+                throw new MessagingException("Failed to store mail", e);
+            }
+        }
+
+        if (all_attachments) {
+            return POP3MessageUtil.findFileAttachments(msg, content);
+        }
+        MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg, content);
+        return attachment == null ? Collections.emptyList() : Collections.singletonList(attachment);
+    }
+
+    public void setRawMessageSpool(RawMessageSpool spool) {
+        this.spool = spool;
+    }
+
+    public void setChunkedTransfers(boolean chunked_transfers) {
+        // chunks are reassembled by the caller, so they are retrieved even if only the most recent mail is emitted
+        this.chunked_transfers = chunked_transfers;
+    }
+
+    public void setSizeLimits(long max_mail_size, long in_memory_mail_size, long in_memory_poll_size, File temporary_directory) {
+        // mails above max_mail_size are not received, only mails up to in_memory_mail_size are held in memory
+        // and in sum only up to in_memory_poll_size per poll; all other mails are streamed to disk
+        this.max_mail_size = max_mail_size;
+        this.in_memory_mail_size = in_memory_mail_size;
+        this.in_memory_poll_size = in_memory_poll_size;
+        this.temporary_directory = temporary_directory;
+    }
+
+    private boolean isStreamedToDisk(Message msg) throws MessagingException {
+        if (in_memory_mail_size == Long.MAX_VALUE) return false;
+
+        int size = msg.getSize();
+        if (size < 0 || size > in_memory_mail_size || in_memory_bytes + size > in_memory_poll_size) {
+            return true;
+        }
+        in_memory_bytes += size;
+        return false;
+    }
+
+    public List<Message> getOversizedMessages() {
+        // matching mails above the size limit, only their headers were retrieved
+        return oversized;
+    }
+
+    public List<Path> getTemporaryFiles() {
+        // raw mails streamed to disk, to be removed once their attachments are written
+        return temporary_files;
+    }
+
+    public List<RawMessageSpool.FileMessage> getFileMessages() {
+        // mails parsed from spooled or streamed files, to be closed once their attachments are written
+        return file_messages;
+    }
+
+    public void setPipeline(PipelinedMailReceiver pipeline) {
+        // only used if all matching mails are retrieved, the most recent mail alone has nothing to overlap with
+        this.pipeline = pipeline;
+    }
+
+    public List<Message> getSupersededMessages() {
+        // matching mails older than the most recent mail of each of their tags, these are not retrieved
+        return superseded;
+    }
+
+    public String getResumeUidl() {
+        // UIDL of the first mail that did not fit into the batch, null if the mailbox was polled completely
+        return resume_uidl;
+    }
+
+    private static Message[] skipToMessage(POP3Folder inbox, Message[] messages, String uidl) throws MessagingException {
+        FetchProfile profile = new FetchProfile();
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        inbox.fetch(messages, profile);
+
+        // POP3 lists mails in the order of arrival, so everything in front of the mail was handled before
+        for (int i = 0; i < messages.length; i++) {
+            if (uidl.equals(inbox.getUID(messages[i]))) {
+                return Arrays.copyOfRange(messages, i, messages.length);
+            }
+        }
+
+        // the mail is gone, start from the beginning
+        return messages;
+    }
+
+    public static Message[] filterUnseenMessages(POP3Folder inbox, Message[] messages, POP3UIDLState seen_mails) throws MessagingException {
+        // fetch all UIDLs at once (single UIDL command) instead of one command per message
+        FetchProfile profile = new FetchProfile();
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        inbox.fetch(messages, profile);
+
+        List<String> mailbox_uidls = new ArrayList<>(messages.length);
+        List<Message> unseen = new ArrayList<>();
+        for (Message msg : messages) {
+            String uidl = inbox.getUID(msg);
+            mailbox_uidls.add(uidl);
+            if (!seen_mails.contains(uidl)) {
+                unseen.add(msg);
+            }
+        }
+
+        // forget mails which have been removed from the server in the meantime
+        seen_mails.retainOnly(mailbox_uidls);
+        return unseen.toArray(new Message[0]);
+    }
+}
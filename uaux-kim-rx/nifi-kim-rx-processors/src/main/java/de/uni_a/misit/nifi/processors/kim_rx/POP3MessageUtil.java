@@ -1,36 +1,88 @@
 package de.uni_a.misit.nifi.processors.kim_rx;
 
+import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Multipart;
+import jakarta.mail.Part;
 import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 public class POP3MessageUtil {
 
-    public static MimeBodyPart findFileAttachmentFromMimeBodyPart(Object content)  {
+    public static MailAttachment findFileAttachment(Message msg) {
+        return findFileAttachment(msg, msg);
+    }
+
+    public static MailAttachment findFileAttachment(Message msg, Part content) {
+        // the content may be a local copy of the mailbox message
+        MimeBodyPart part = findFileAttachmentFromPart(content);
+        try {
+            return part == null ? null : new MailAttachment(msg, part, getMessageId(msg), 0, 1);
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static List<MailAttachment> findFileAttachments(Message msg) {
+        return findFileAttachments(msg, msg);
+    }
+
+    public static List<MailAttachment> findFileAttachments(Message msg, Part content) {
+        List<MimeBodyPart> parts = new ArrayList<>();
+        findFileAttachmentsFromPart(content, parts, Integer.MAX_VALUE);
+
+        // all attachments of the message share its id, so they can be correlated again later on
+        List<MailAttachment> attachments = new ArrayList<>(parts.size());
+        try {
+            String message_id = parts.isEmpty() ? null : getMessageId(msg);
+            for (int i = 0; i < parts.size(); ++i) {
+                attachments.add(new MailAttachment(msg, parts.get(i), message_id, i, parts.size()));
+            }
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        }
+        return attachments;
+    }
+
+    public static MimeBodyPart findFileAttachmentFromPart(Part container)  {
+        List<MimeBodyPart> parts = new ArrayList<>(1);
+        findFileAttachmentsFromPart(container, parts, 1);
+        return parts.isEmpty() ? null : parts.get(0);
+    }
+
+    private static void findFileAttachmentsFromPart(Part container, List<MimeBodyPart> result, int max_parts)  {
         // Adopted from https://www.rgagnon.com/javadetails/java-receive-email-using-pop3.html
+        // Only multipart containers are materialised. Leaf parts are identified by their Content-Type header,
+        // so sibling parts are never decoded. Multiparts are parsed on top of the shared raw message stream,
+        // hence the body parts only reference their range of the raw message and are not copied.
         try {
-            if (content instanceof Multipart) {
-                Multipart multi = ((Multipart)content);
+            if (container.isMimeType("multipart/*")) {
+                Multipart multi = (Multipart) container.getContent();
                 int parts = multi.getCount();
-                for (int i=0; i < parts; ++i) {
+                for (int i=0; i < parts && result.size() < max_parts; ++i) {
                     MimeBodyPart part = (MimeBodyPart)multi.getBodyPart(i);
-                    if (part.getContent() instanceof Multipart) {
+                    if (part.isMimeType("multipart/*")) {
                         // extract subpart
-                        MimeBodyPart result = findFileAttachmentFromMimeBodyPart(part.getContent());
-                        if (result != null) return result;
+                        findFileAttachmentsFromPart(part, result, max_parts);
                     }
-                    else {
-                        if (part.isMimeType("application/octet-stream")) {
-                            // we found the right part
-                            return part;
-                        }
+                    else if (part.isMimeType("application/octet-stream")) {
+                        // we found the right part
+                        result.add(part);
                     }
                 }
             }
-            return null;
         } catch (IOException | MessagingException e) {
             throw new RuntimeException(e);
         }
     }
+
+    static String getMessageId(Message msg) throws MessagingException {
+        // the Message-ID header is optional, mails without one get a generated id
+        String message_id = msg instanceof MimeMessage ? ((MimeMessage) msg).getMessageID() : null;
+        return message_id != null ? message_id : UUID.randomUUID().toString();
+    }
 }
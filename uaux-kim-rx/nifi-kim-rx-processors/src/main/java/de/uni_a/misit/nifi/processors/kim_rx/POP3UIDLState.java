@@ -0,0 +1,94 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import org.apache.nifi.components.state.StateMap;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class POP3UIDLState {
+    // Server UIDLs may be up to 70 characters long, so only a 64 bit hash of every UIDL is stored.
+    // The hashes have a fixed length of 11 characters and keep the state small even for large mailboxes.
+    private static final String STATE_KEY_UIDL_HASHES = "kimrx.seen.uidl.hashes";
+    // plain UIDLs written by earlier versions, converted when the state is read
+    private static final String STATE_KEY_UIDLS = "kimrx.seen.uidls";
+    private static final String SEPARATOR = " ";
+
+    private final LinkedHashSet<String> uidl_hashes = new LinkedHashSet<>();
+    private final int max_entries;
+
+    public POP3UIDLState(int max_entries) {
+        this.max_entries = max_entries;
+    }
+
+    public static POP3UIDLState fromStateMap(StateMap state, int max_entries) {
+        POP3UIDLState result = new POP3UIDLState(max_entries);
+        if (state == null) return result;
+
+        String stored = state.get(STATE_KEY_UIDL_HASHES);
+        if (stored != null && !stored.isBlank()) {
+            for (String uidl_hash : stored.split(SEPARATOR)) {
+                if (!uidl_hash.isEmpty()) result.uidl_hashes.add(uidl_hash);
+            }
+        }
+        String legacy = state.get(STATE_KEY_UIDLS);
+        if (legacy != null && !legacy.isBlank()) {
+            for (String uidl : legacy.split(SEPARATOR)) {
+                if (!uidl.isEmpty()) result.add(uidl);
+            }
+        }
+        return result;
+    }
+
+    public boolean contains(String uidl) {
+        return uidl != null && uidl_hashes.contains(hash(uidl));
+    }
+
+    public void add(String uidl) {
+        if (uidl == null) return;
+        // Entries are never evicted while their mail is still on the server, a dropped entry would make
+        // the mail look unseen and it would be emitted again with every poll.
+        uidl_hashes.add(hash(uidl));
+    }
+
+    public void retainOnly(Collection<String> mailbox_uidls) {
+        // mails that are gone from the server will never show up again, so their UIDLs can be dropped
+        Set<String> present = new HashSet<>();
+        for (String uidl : mailbox_uidls) {
+            if (uidl != null) present.add(hash(uidl));
+        }
+        uidl_hashes.retainAll(present);
+    }
+
+    public int size() {
+        return uidl_hashes.size();
+    }
+
+    public boolean isOverCapacity() {
+        // the mailbox holds more seen mails than expected, the state grows beyond the configured size
+        return uidl_hashes.size() > max_entries;
+    }
+
+    public Map<String, String> toStateMap() {
+        Map<String, String> state = new HashMap<>();
+        state.put(STATE_KEY_UIDL_HASHES, String.join(SEPARATOR, uidl_hashes));
+        return state;
+    }
+
+    static String hash(String uidl) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(uidl.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
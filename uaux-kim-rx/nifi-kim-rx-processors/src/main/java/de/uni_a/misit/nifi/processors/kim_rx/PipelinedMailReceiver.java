@@ -0,0 +1,129 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class PipelinedMailReceiver {
+    private final ExecutorService workers;
+    private final int queue_size;
+    private final File directory;
+
+    public PipelinedMailReceiver(int worker_threads, int queue_size, File directory) {
+        this.workers = Executors.newFixedThreadPool(worker_threads, runnable -> {
+            Thread thread = new Thread(runnable, "KIM RX receive worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.queue_size = queue_size;
+        this.directory = directory;
+    }
+
+    public List<MailAttachment> receive(POP3Folder inbox, List<Message> candidates, boolean all_attachments,
+                                        RawMessageSpool spool) throws MessagingException, IOException {
+        // The calling thread only retrieves (RETR) the raw mails, one after another over the POP3 connection.
+        // Parsing and decoding run on the workers meanwhile. At most queue_size retrieved mails wait for a
+        // worker, beyond that the retrieval blocks until a worker picks up the next mail.
+        Semaphore queue_slots = new Semaphore(queue_size);
+        List<Future<List<MailAttachment>>> results = new ArrayList<>(candidates.size());
+        Exception failure = null;
+        try {
+            for (Message msg : candidates) {
+                Path raw_file = spool != null ? spool.store(inbox.getUID(msg), msg) : RawMessageSpool.storeTemporary(msg, directory);
+                boolean temporary = spool == null;
+                // the raw mail is on disk now, the downloaded content is not needed anymore
+                ((POP3Message) msg).invalidate(false);
+
+                queue_slots.acquire();
+                try {
+                    results.add(workers.submit(() -> {
+                        try {
+                            return extract(msg, raw_file, all_attachments);
+                        } finally {
+                            queue_slots.release();
+                            if (temporary) Files.deleteIfExists(raw_file);
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    queue_slots.release();
+                    if (temporary) Files.deleteIfExists(raw_file);
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Interrupted while receiving mails", e);
+        } catch (MessagingException | IOException | RuntimeException e) {
+            failure = e;
+        }
+
+        // collect in the order of the candidates; all workers are awaited, so no decoded file is left behind
+        List<MailAttachment> matches = new ArrayList<>();
+        for (Future<List<MailAttachment>> result : results) {
+            try {
+                matches.addAll(result.get());
+            } catch (ExecutionException e) {
+                if (failure == null) failure = (Exception) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = new IOException("Interrupted while receiving mails", e);
+            }
+        }
+
+        if (failure != null) {
+            for (MailAttachment attachment : matches) {
+                Files.deleteIfExists(attachment.getDecodedFile());
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure instanceof MessagingException) throw (MessagingException) failure;
+            throw (RuntimeException) failure;
+        }
+        return matches;
+    }
+
+    private List<MailAttachment> extract(Message msg, Path raw_file, boolean all_attachments) throws MessagingException, IOException {
+        // runs on a worker: parse the local copy and decode the attachments into their own files
+        // The local copy is closed afterwards, the attachments are only read from the decoded files.
+        try (RawMessageSpool.FileMessage content = RawMessageSpool.load(raw_file)) {
+            List<MailAttachment> attachments;
+            if (all_attachments) {
+                attachments = POP3MessageUtil.findFileAttachments(msg, content);
+            } else {
+                MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg, content);
+                attachments = attachment == null ? Collections.emptyList() : Collections.singletonList(attachment);
+            }
+
+            List<MailAttachment> decoded = new ArrayList<>(attachments.size());
+            try {
+                for (MailAttachment attachment : attachments) {
+                    attachment.setDecodedFile(AttachmentDecoder.decode(attachment, directory));
+                    decoded.add(attachment);
+                }
+            } catch (MessagingException | IOException | RuntimeException e) {
+                for (MailAttachment attachment : decoded) {
+                    Files.deleteIfExists(attachment.getDecodedFile());
+                }
+                throw e;
+            }
+            return attachments;
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,137 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedFileInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class RawMessageSpool {
+    private static final String FILE_SUFFIX = ".eml";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path directory;
+    private final long max_bytes;
+    // parsing only, the session is never connected
+    private static final Session PARSE_SESSION = Session.getInstance(new Properties());
+
+    public RawMessageSpool(Path directory, long max_bytes) {
+        this.directory = directory;
+        this.max_bytes = max_bytes;
+    }
+
+    public FileMessage retrieve(String uidl, Message msg) throws MessagingException, IOException {
+        return load(store(uidl, msg));
+    }
+
+    public Path store(String uidl, Message msg) throws MessagingException, IOException {
+        // mails retrieved by a previous, failed poll are read from disk instead of the server
+        Path file = getFile(uidl);
+        if (!Files.exists(file)) {
+            Path tmp_file = directory.resolve(file.getFileName() + ".tmp");
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp_file))) {
+                msg.writeTo(os);
+            } catch (IOException | MessagingException | RuntimeException e) {
+                Files.deleteIfExists(tmp_file);
+                throw e;
+            }
+            // complete files only, so an interrupted download is never mistaken for a spooled mail
+            Files.move(tmp_file, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict(file);
+        }
+        return file;
+    }
+
+    public void remove(String uidl) {
+        try {
+            Files.deleteIfExists(getFile(uidl));
+        } catch (IOException ignored) {}
+    }
+
+    public static Path storeTemporary(Message msg, File directory) throws MessagingException, IOException {
+        // POP3 writes the RETR response directly into the stream, the mail is never held in memory as a whole
+        Path raw_file = File.createTempFile("kimrx", FILE_SUFFIX, directory).toPath();
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(raw_file))) {
+            msg.writeTo(os);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(raw_file);
+            throw e;
+        }
+        return raw_file;
+    }
+
+    public static FileMessage load(Path file) throws MessagingException, IOException {
+        // The parts of the message read their ranges directly from the file, nothing is mapped or copied.
+        // So the mail size is not limited, and the disk space is released as soon as the message is closed.
+        SharedFileInputStream stream = new SharedFileInputStream(file.toFile(), BUFFER_SIZE);
+        try {
+            return new FileMessage(stream);
+        } catch (MessagingException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    private void evict(Path keep) throws IOException {
+        // drop the oldest mails until the spool fits its size limit again
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(f -> f.getFileName().toString().endsWith(FILE_SUFFIX)).collect(Collectors.toList());
+        }
+
+        long total = 0;
+        List<Path> candidates = new ArrayList<>();
+        for (Path f : files) {
+            total += Files.size(f);
+            if (!f.equals(keep)) candidates.add(f);
+        }
+        if (total <= max_bytes) return;
+
+        candidates.sort(Comparator.comparingLong(f -> f.toFile().lastModified()));
+        for (Path f : candidates) {
+            if (total <= max_bytes) break;
+            total -= Files.size(f);
+            Files.deleteIfExists(f);
+        }
+    }
+
+    public static class FileMessage extends MimeMessage implements Closeable {
+        private final SharedFileInputStream stream;
+
+        private FileMessage(SharedFileInputStream stream) throws MessagingException {
+            super(PARSE_SESSION, stream);
+            this.stream = stream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the file is closed for all parts of the message, their content cannot be read anymore
+            stream.close();
+        }
+    }
+
+    private Path getFile(String uidl) {
+        // UIDLs may contain any printable character, so they are hex encoded for the file name
+        StringBuilder name = new StringBuilder();
+        for (byte b : uidl.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return directory.resolve(name.append(FILE_SUFFIX).toString());
+    }
+}
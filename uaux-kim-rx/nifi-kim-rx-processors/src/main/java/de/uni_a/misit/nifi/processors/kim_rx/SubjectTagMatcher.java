@@ -0,0 +1,87 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+public class SubjectTagMatcher {
+    // Aho-Corasick automaton: all tags are found in a single pass over the subject, no matter how many tags there are
+    private static class Node {
+        private final Map<Character, Node> next = new HashMap<>();
+        private final List<String> keys = new ArrayList<>();
+        private Node fail = null;
+    }
+
+    private final Node root = new Node();
+
+    public SubjectTagMatcher(Map<String, String> tags) {
+        // tags maps the key reported on a match, e.g. the name of a relationship, to the tag text
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            Node node = root;
+            for (char c : tag.getValue().toCharArray()) {
+                node = node.next.computeIfAbsent(c, k -> new Node());
+            }
+            node.keys.add(tag.getKey());
+        }
+
+        // breadth-first: the failure link of a node points to the longest proper suffix that is a prefix of a tag
+        Queue<Node> queue = new ArrayDeque<>();
+        for (Node child : root.next.values()) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.remove();
+            for (Map.Entry<Character, Node> edge : node.next.entrySet()) {
+                Node child = edge.getValue();
+                Node fail = node.fail;
+                while (fail != root && !fail.next.containsKey(edge.getKey())) {
+                    fail = fail.fail;
+                }
+                Node target = fail.next.get(edge.getKey());
+                child.fail = target != null && target != child ? target : root;
+                // tags ending in the suffix also end here
+                child.keys.addAll(child.fail.keys);
+                queue.add(child);
+            }
+        }
+    }
+
+    public static SubjectTagMatcher forTag(String tag, String key) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(key, tag);
+        return new SubjectTagMatcher(tags);
+    }
+
+    public boolean matches(String subject) {
+        Node node = root;
+        for (int i = 0; i < subject.length(); i++) {
+            node = step(node, subject.charAt(i));
+            if (!node.keys.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    public Set<String> match(String subject) {
+        Set<String> keys = new LinkedHashSet<>();
+        Node node = root;
+        for (int i = 0; i < subject.length(); i++) {
+            node = step(node, subject.charAt(i));
+            keys.addAll(node.keys);
+        }
+        return keys;
+    }
+
+    private Node step(Node node, char c) {
+        while (node != root && !node.next.containsKey(c)) {
+            node = node.fail;
+        }
+        Node next = node.next.get(c);
+        return next != null ? next : root;
+    }
+}
@@ -0,0 +1,56 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AttachmentDeduplicatorTest {
+
+    private static final String HASH_1 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final String HASH_2 = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testFilterSurvivesRestart() throws Exception {
+        Path filter_file = new File(tempDir, "duplicates.bloom").toPath();
+
+        AttachmentDeduplicator deduplicator = new AttachmentDeduplicator(filter_file, 1000, 0.001, 1);
+        assertFalse(deduplicator.mightBeDuplicate(HASH_1));
+        deduplicator.add(HASH_1);
+        deduplicator.add(HASH_2);
+        // the cache holds a single hash, the older one is only known by the filter
+        assertTrue(deduplicator.isDuplicate(HASH_2));
+        assertFalse(deduplicator.isDuplicate(HASH_1));
+        assertTrue(deduplicator.mightBeDuplicate(HASH_1));
+        deduplicator.save();
+
+        // the cache is restored with the filter, the older hash is still only known by the filter
+        AttachmentDeduplicator restored = new AttachmentDeduplicator(filter_file, 1000, 0.001, 1);
+        restored.load();
+        assertEquals(2, restored.getEntries());
+        assertTrue(restored.isDuplicate(HASH_2));
+        assertFalse(restored.isDuplicate(HASH_1));
+        assertTrue(restored.mightBeDuplicate(HASH_1));
+
+        // a filter with different dimensions is not reused
+        AttachmentDeduplicator resized = new AttachmentDeduplicator(filter_file, 2000, 0.001, 1);
+        resized.load();
+        assertEquals(0, resized.getEntries());
+    }
+
+    @Test
+    public void testRejectOversizedFilter() {
+        // the bits of the filter are kept in a single array
+        Path filter_file = new File(tempDir, "duplicates.bloom").toPath();
+        assertThrows(IllegalArgumentException.class, () -> new AttachmentDeduplicator(filter_file, Long.MAX_VALUE / 64, 0.001, 1));
+    }
+}
@@ -0,0 +1,37 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedFileInputStream;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class BoundedHeapReceiver {
+
+    // Started in a JVM with a small heap by POP3MessageUtilTest. Parses a spooled raw mail like the
+    // POP3 file cache provides it and decodes the attachment the way it is streamed into the flow file.
+    public static void main(String[] args) throws Exception {
+        Session session = Session.getInstance(new Properties());
+        try (SharedFileInputStream raw_stream = new SharedFileInputStream(new File(args[0]))) {
+            MimeMessage msg = new MimeMessage(session, raw_stream);
+            MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg);
+
+            long count = 0;
+            try (InputStream is = attachment.getInputStream()) {
+                byte[] buf = new byte[8192];
+                int length;
+                while ((length = is.read(buf)) != -1) {
+                    for (int i = 0; i < length; i++) {
+                        if (buf[i] != (byte) ((count + i) % 251)) {
+                            throw new IllegalStateException("Unexpected content at " + (count + i));
+                        }
+                    }
+                    count += length;
+                }
+            }
+            System.out.println(count);
+        }
+    }
+}
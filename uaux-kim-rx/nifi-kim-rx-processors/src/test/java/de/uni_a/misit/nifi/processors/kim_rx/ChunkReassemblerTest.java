@@ -0,0 +1,108 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChunkReassemblerTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testReassembleChunks() throws Exception {
+        ChunkReassembler reassembler = new ChunkReassembler(tempDir.toPath(), 60000);
+        String content = "first chunk|second chunk";
+        String transfer_hash = sha256(content);
+
+        // the chunks may arrive in any order
+        assertTrue(reassembler.store(chunk("second chunk", 1, transfer_hash, sha256("second chunk"))));
+        assertTrue(reassembler.collect().isEmpty());
+        assertTrue(reassembler.store(chunk("first chunk|", 0, transfer_hash, sha256("first chunk|"))));
+
+        List<ChunkReassembler.Transfer> transfers = reassembler.collect();
+        assertEquals(1, transfers.size());
+        ChunkReassembler.Transfer transfer = transfers.get(0);
+        assertEquals("transfer-1", transfer.getTransferId());
+        assertEquals("data.csv", transfer.getFileName());
+        assertTrue(reassembler.assemble(transfer));
+        assertEquals(content, Files.readString(transfer.getAssembledFile()));
+
+        // pending until the commit, removed afterwards
+        assertTrue(reassembler.collect().isEmpty());
+        reassembler.release(transfer, true);
+        assertEquals(0, Objects.requireNonNull(tempDir.list()).length);
+    }
+
+    @Test
+    public void testRejectCorruptedChunk() throws Exception {
+        ChunkReassembler reassembler = new ChunkReassembler(tempDir.toPath(), 60000);
+        assertFalse(reassembler.store(chunk("second chunk", 1, sha256("any"), sha256("other content"))));
+        assertTrue(reassembler.collect().isEmpty());
+    }
+
+    @Test
+    public void testStoreChunkWithoutDate() throws Exception {
+        ChunkReassembler reassembler = new ChunkReassembler(tempDir.toPath(), 60000);
+        MailAttachment attachment = chunk("first chunk|", 0, sha256("first chunk|second chunk"), sha256("first chunk|"));
+        attachment.getMessage().removeHeader("Date");
+
+        long before = System.currentTimeMillis();
+        assertTrue(reassembler.store(attachment));
+        assertTrue(reassembler.store(chunk("second chunk", 1, sha256("first chunk|second chunk"), sha256("second chunk"))));
+
+        List<ChunkReassembler.Transfer> transfers = reassembler.collect();
+        assertEquals(1, transfers.size());
+        assertTrue(transfers.get(0).getSentDate().getTime() >= before);
+    }
+
+    private static MailAttachment chunk(String content, int sequence, String transfer_hash, String chunk_hash) throws Exception {
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG] (" + (sequence + 1) + "/2)\r\n"
+                + "Date: Fri, 16 Oct 2026 10:00:00 +0200\r\n"
+                + "X-KIM-Transfer-Id: transfer-1\r\n"
+                + "X-KIM-Transfer-Size: 24\r\n"
+                + "X-KIM-Transfer-SHA256: " + transfer_hash + "\r\n"
+                + "X-KIM-Chunk-Sequence: " + sequence + "\r\n"
+                + "X-KIM-Chunk-Count: 2\r\n"
+                + "X-KIM-Chunk-SHA256: " + chunk_hash + "\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=data.csv\r\n"
+                + "\r\n"
+                + Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.US_ASCII)) + "\r\n"
+                + "--kim-boundary--\r\n";
+
+        Session session = Session.getInstance(new Properties());
+        MimeMessage msg = new MimeMessage(session, new ByteArrayInputStream(raw_mail.getBytes(StandardCharsets.US_ASCII)));
+        return POP3MessageUtil.findFileAttachment(msg);
+    }
+
+    private static String sha256(String content) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.US_ASCII));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EmptyPollBackoffTest {
+
+    @Test
+    public void testBackoffGrowsUpToMaximum() {
+        EmptyPollBackoff backoff = new EmptyPollBackoff(1000, 5000);
+        assertFalse(backoff.isPaused(0));
+
+        // doubled with every empty poll
+        assertEquals(1000, backoff.onEmptyPoll(0));
+        assertTrue(backoff.isPaused(999));
+        assertFalse(backoff.isPaused(1000));
+        assertEquals(2000, backoff.onEmptyPoll(1000));
+        assertEquals(4000, backoff.onEmptyPoll(3000));
+
+        // capped at the maximum, also after many empty polls
+        assertEquals(5000, backoff.onEmptyPoll(7000));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(5000, backoff.onEmptyPoll(0));
+        }
+    }
+
+    @Test
+    public void testResetAfterReceivedMails() {
+        EmptyPollBackoff backoff = new EmptyPollBackoff(1000, 60000);
+        backoff.onEmptyPoll(0);
+        backoff.onEmptyPoll(1000);
+        assertTrue(backoff.isPaused(2000));
+
+        // the next poll follows the run schedule, a later empty poll starts with the initial backoff again
+        backoff.reset();
+        assertFalse(backoff.isPaused(2000));
+        assertEquals(1000, backoff.onEmptyPoll(2000));
+    }
+
+    @Test
+    public void testDisabledWithoutMaximum() {
+        EmptyPollBackoff backoff = new EmptyPollBackoff(1000, 0);
+        assertEquals(0, backoff.onEmptyPoll(0));
+        assertFalse(backoff.isPaused(0));
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.URLName;
+import jakarta.mail.internet.MimeMessage;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class KIMRXIMAPProcessorTest {
+
+    private static final String STATE_KEY_UID_VALIDITY = "kimrx.imap.uidvalidity";
+    private static final String STATE_KEY_LAST_UID = "kimrx.imap.last.uid";
+
+    private ScriptedProcessor processor;
+    private TestRunner testRunner;
+
+    @BeforeEach
+    public void init() {
+        processor = new ScriptedProcessor();
+        testRunner = TestRunners.newTestRunner(processor);
+    }
+
+    @Test
+    public void testRequiresCredentials() {
+        testRunner.assertNotValid();
+
+        testRunner.setProperty(KIMRXIMAPProcessor.KIMRX_IMAP_SERVER_AUTH_USERNAME, "praxis.test@kim.telematik");
+        testRunner.setProperty(KIMRXIMAPProcessor.KIMRX_IMAP_SERVER_AUTH_PASSWORD, "secret");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testEmitNewMailsAndDeleteAfterCommit() throws Exception {
+        configure("true");
+        Map<String, String> state = new HashMap<>();
+        state.put(STATE_KEY_UID_VALIDITY, "7");
+        state.put(STATE_KEY_LAST_UID, "1");
+        testRunner.getStateManager().setState(state, Scope.CLUSTER);
+
+        // the mail with UID 1 was processed before the restart, the second mail is announced twice
+        ScriptedFolder folder = new ScriptedFolder();
+        Message old = folder.add(1, "old");
+        Message first = folder.add(2, "first");
+        Message second = folder.add(3, "second");
+        processor.announced.addAll(Arrays.asList(old, first, second, second));
+
+        testRunner.run();
+
+        assertEquals(Arrays.asList(7L, 1L), processor.started_at);
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 2);
+        List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(KIMRXProcessor.RELATIONSHIP_SUCCESS);
+        flowFiles.get(0).assertContentEquals("first");
+        flowFiles.get(1).assertContentEquals("second");
+
+        testRunner.getStateManager().assertStateEquals(STATE_KEY_UID_VALIDITY, "7", Scope.CLUSTER);
+        testRunner.getStateManager().assertStateEquals(STATE_KEY_LAST_UID, "3", Scope.CLUSTER);
+        assertEquals(3, processor.receiver.getLastUID());
+
+        // the mails are expunged once the marker is committed
+        assertEquals(Arrays.asList("3"), folder.committed_uid_at_expunge);
+        assertFalse(old.isSet(Flags.Flag.DELETED));
+        assertTrue(first.isSet(Flags.Flag.DELETED));
+        assertTrue(second.isSet(Flags.Flag.DELETED));
+    }
+
+    @Test
+    public void testFirstRunEmitsWholeFolder() throws Exception {
+        configure("false");
+
+        // without a stored state the receiver starts before the first UID
+        ScriptedFolder folder = new ScriptedFolder();
+        Message first = folder.add(1, "first");
+        Message second = folder.add(2, "second");
+        processor.announced.addAll(Arrays.asList(first, second));
+
+        testRunner.run();
+
+        assertEquals(Arrays.asList(-1L, 0L), processor.started_at);
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 2);
+        testRunner.getStateManager().assertStateEquals(STATE_KEY_LAST_UID, "2", Scope.CLUSTER);
+
+        // the mails are kept on the server
+        assertTrue(folder.committed_uid_at_expunge.isEmpty());
+        assertFalse(first.isSet(Flags.Flag.DELETED));
+        assertFalse(second.isSet(Flags.Flag.DELETED));
+    }
+
+    @Test
+    public void testYieldOnEmptyPoll() {
+        configure("true");
+
+        testRunner.run();
+
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 0);
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_FAILURE, 0);
+        assertTrue(((MockProcessContext) testRunner.getProcessContext()).isYieldCalled());
+    }
+
+    private void configure(String delete_mails) {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_TAG, "KIM_DEMO_TAG");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_DELETE_MAILS, delete_mails);
+        testRunner.setProperty(KIMRXIMAPProcessor.KIMRX_IMAP_SERVER_AUTH_USERNAME, "praxis.test@kim.telematik");
+        testRunner.setProperty(KIMRXIMAPProcessor.KIMRX_IMAP_SERVER_AUTH_PASSWORD, "secret");
+    }
+
+    class ScriptedProcessor extends KIMRXIMAPProcessor {
+        // mails announced by the server, the folder is never watched
+        final Deque<Message> announced = new ArrayDeque<>();
+        final List<Long> started_at = new ArrayList<>();
+        ScriptedReceiver receiver;
+
+        @Override
+        IMAPIdleReceiver createReceiver(final ProcessContext context, final long uid_validity, final long last_uid) {
+            started_at.add(uid_validity);
+            started_at.add(last_uid);
+            receiver = new ScriptedReceiver(announced, last_uid);
+            return receiver;
+        }
+    }
+
+    static class ScriptedReceiver extends IMAPIdleReceiver {
+        private final Deque<Message> announced;
+
+        ScriptedReceiver(Deque<Message> announced, long last_uid) {
+            // the folder of the mails has UIDVALIDITY 7
+            super("localhost", 993, "praxis.test@kim.telematik", "secret", false, "INBOX", 7, last_uid, 1000, null);
+            this.announced = announced;
+        }
+
+        @Override
+        public synchronized void start() {}
+
+        @Override
+        public synchronized void stop() {}
+
+        @Override
+        public Message poll(long timeout, TimeUnit unit) {
+            return announced.poll();
+        }
+
+        @Override
+        public void drainTo(Collection<Message> messages, int max_messages) {
+            while (!announced.isEmpty() && max_messages-- > 0) {
+                messages.add(announced.poll());
+            }
+        }
+
+        @Override
+        public void resync() {}
+    }
+
+    class ScriptedFolder extends Folder implements UIDFolder {
+        private final Map<Message, Long> uids = new HashMap<>();
+        // the committed UID marker, read whenever the processor deletes mails
+        final List<String> committed_uid_at_expunge = new ArrayList<>();
+
+        ScriptedFolder() {
+            super(new Store(Session.getInstance(new Properties()), null) {
+                @Override
+                public Folder getDefaultFolder() {
+                    return null;
+                }
+
+                @Override
+                public Folder getFolder(String name) {
+                    return null;
+                }
+
+                @Override
+                public Folder getFolder(URLName url) {
+                    return null;
+                }
+            });
+        }
+
+        Message add(long uid, String content) throws MessagingException {
+            Message msg = new FolderMessage(this, content, uids.size() + 1);
+            uids.put(msg, uid);
+            return msg;
+        }
+
+        @Override
+        public long getUID(Message msg) {
+            return uids.get(msg);
+        }
+
+        @Override
+        public Message[] expunge() throws MessagingException {
+            try {
+                committed_uid_at_expunge.add(testRunner.getStateManager().getState(Scope.CLUSTER).get(STATE_KEY_LAST_UID));
+            } catch (IOException e) {
+                throw new MessagingException("Failed to read the state", e);
+            }
+            return new Message[0];
+        }
+
+        @Override
+        public long getUIDValidity() {
+            return 7;
+        }
+
+        @Override
+        public long getUIDNext() {
+            return uids.size() + 1;
+        }
+
+        @Override
+        public Message getMessageByUID(long uid) {
+            return null;
+        }
+
+        @Override
+        public Message[] getMessagesByUID(long start, long end) {
+            return new Message[0];
+        }
+
+        @Override
+        public Message[] getMessagesByUID(long[] uids) {
+            return new Message[0];
+        }
+
+        @Override
+        public String getName() {
+            return "INBOX";
+        }
+
+        @Override
+        public String getFullName() {
+            return "INBOX";
+        }
+
+        @Override
+        public Folder getParent() {
+            return null;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public Folder[] list(String pattern) {
+            return new Folder[0];
+        }
+
+        @Override
+        public char getSeparator() {
+            return '/';
+        }
+
+        @Override
+        public int getType() {
+            return HOLDS_MESSAGES;
+        }
+
+        @Override
+        public boolean create(int type) {
+            return false;
+        }
+
+        @Override
+        public boolean hasNewMessages() {
+            return false;
+        }
+
+        @Override
+        public Folder getFolder(String name) {
+            return null;
+        }
+
+        @Override
+        public boolean delete(boolean recurse) {
+            return false;
+        }
+
+        @Override
+        public boolean renameTo(Folder folder) {
+            return false;
+        }
+
+        @Override
+        public void open(int mode) {}
+
+        @Override
+        public void close(boolean expunge) {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public Flags getPermanentFlags() {
+            return new Flags();
+        }
+
+        @Override
+        public int getMessageCount() {
+            return uids.size();
+        }
+
+        @Override
+        public Message getMessage(int msgnum) {
+            return null;
+        }
+
+        @Override
+        public void appendMessages(Message[] msgs) {}
+    }
+
+    static class FolderMessage extends MimeMessage {
+        FolderMessage(Folder folder, String content, int msgnum) throws MessagingException {
+            super(folder, new ByteArrayInputStream(KIMRXProcessorTest.rawMail(content)), msgnum);
+        }
+    }
+}
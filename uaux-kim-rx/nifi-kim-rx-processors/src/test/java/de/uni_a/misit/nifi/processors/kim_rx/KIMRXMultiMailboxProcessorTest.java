@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Store;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static de.uni_a.misit.nifi.processors.kim_rx.KIMRXProcessorTest.mail;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class KIMRXMultiMailboxProcessorTest {
+
+    private static final String MAILBOX_1 = "praxis.eins@kim.telematik";
+    private static final String MAILBOX_2 = "praxis.zwei@kim.telematik";
+    private static final String MAILBOX_3 = "praxis.drei@kim.telematik";
+
+    private ScriptedProcessor processor;
+    private TestRunner testRunner;
+
+    @BeforeEach
+    public void init() {
+        processor = new ScriptedProcessor();
+        testRunner = TestRunners.newTestRunner(processor);
+    }
+
+    @Test
+    public void testRequiresMailbox() {
+        testRunner.assertNotValid();
+
+        testRunner.setProperty("praxis.test@kim.telematik#mail.kim.telematik:10465#Mandant1#ClientID1#Workplace1", "secret");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testMergeMailboxesDespiteFailedMailbox() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_TAG, "KIM_DEMO_TAG");
+        testRunner.setProperty(MAILBOX_1, "secret");
+        testRunner.setProperty(MAILBOX_2, "secret");
+        testRunner.setProperty(MAILBOX_3, "secret");
+
+        MimeMessage first = mail("first");
+        MimeMessage second = mail("second");
+        MimeMessage third = mail("third");
+        processor.mailboxes.put(MAILBOX_1, Arrays.asList(first, second));
+        processor.mailboxes.put(MAILBOX_2, Collections.singletonList(third));
+        // the third mailbox fails to log in
+
+        testRunner.run();
+
+        // the mails of both other mailboxes are emitted, tagged with their mailbox
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 3);
+        Map<String, String> received = new HashMap<>();
+        for (MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(KIMRXProcessor.RELATIONSHIP_SUCCESS)) {
+            received.put(new String(flowFile.toByteArray()), flowFile.getAttribute(KIMRXMultiMailboxProcessor.ATTRIBUTE_MAILBOX));
+        }
+        assertEquals(MAILBOX_1, received.get("first"));
+        assertEquals(MAILBOX_1, received.get("second"));
+        assertEquals(MAILBOX_2, received.get("third"));
+
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(KIMRXProcessor.RELATIONSHIP_FAILURE).get(0)
+                .assertAttributeEquals(KIMRXMultiMailboxProcessor.ATTRIBUTE_MAILBOX, MAILBOX_3);
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_NO_NEW_MAIL, 0);
+
+        // the received mails are deleted after the commit, the failed mailbox is reconnected
+        assertTrue(first.isSet(Flags.Flag.DELETED));
+        assertTrue(second.isSet(Flags.Flag.DELETED));
+        assertTrue(third.isSet(Flags.Flag.DELETED));
+        assertEquals(Collections.singletonList(true), processor.connections.get(MAILBOX_1).released);
+        assertEquals(Collections.singletonList(true), processor.connections.get(MAILBOX_2).released);
+        assertFalse(processor.connections.get(MAILBOX_1).invalidated);
+        assertTrue(processor.connections.get(MAILBOX_3).invalidated);
+    }
+
+    @Test
+    public void testInterruptReleasesRunningPoll() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_TAG, "KIM_DEMO_TAG");
+        testRunner.setProperty(MAILBOX_1, "secret");
+
+        MimeMessage first = mail("first");
+        processor.mailboxes.put(MAILBOX_1, Collections.singletonList(first));
+        processor.hold = new CountDownLatch(1);
+
+        // the trigger is invoked directly, the running poll interrupts it while it waits for the poll
+        ProcessContext context = testRunner.getProcessContext();
+        processor.onScheduled(context);
+        ScriptedConnection connection = processor.connections.get(MAILBOX_1);
+        processor.interrupt_on_poll = Thread.currentThread();
+        processor.onTrigger(context, testRunner.getProcessSessionFactory());
+        assertTrue(Thread.interrupted());
+
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 0);
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_FAILURE, 1);
+
+        // the poll finishes after the trigger gave up, it closes its inbox itself without deleting anything
+        processor.hold.countDown();
+        assertTrue(connection.released_latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(false), connection.released);
+        assertFalse(first.isSet(Flags.Flag.DELETED));
+        assertFalse(connection.invalidated);
+
+        processor.onStopped();
+    }
+
+    static class ScriptedProcessor extends KIMRXMultiMailboxProcessor {
+        // mails of each mailbox, mailboxes without mails fail to log in
+        final Map<String, List<MimeMessage>> mailboxes = new HashMap<>();
+        final Map<String, ScriptedConnection> connections = new HashMap<>();
+        // blocks the polls until released, regardless of interrupts
+        volatile CountDownLatch hold = null;
+        volatile Thread interrupt_on_poll = null;
+
+        @Override
+        POP3Connection createConnection(final ProcessContext context, final String auth_username, final String auth_password) {
+            ScriptedConnection connection = new ScriptedConnection(this, auth_username);
+            connections.put(auth_username, connection);
+            return connection;
+        }
+
+        @Override
+        POP3MailboxPoller createPoller(final KIMMailFilter mail_filter, final boolean most_recent_only) {
+            return new POP3MailboxPoller(mail_filter, most_recent_only) {
+                @Override
+                public List<MailAttachment> findMatches(POP3Folder inbox, POP3UIDLState seen_mails, String resume_at_uidl) throws MessagingException {
+                    List<MailAttachment> matches = new ArrayList<>();
+                    for (MimeMessage msg : mailboxes.get(((MailboxFolder) inbox).mailbox)) {
+                        matches.add(POP3MessageUtil.findFileAttachment(msg));
+                    }
+                    return matches;
+                }
+            };
+        }
+    }
+
+    static class ScriptedConnection extends POP3Connection {
+        private final ScriptedProcessor processor;
+        private final String mailbox;
+        final List<Boolean> released = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch released_latch = new CountDownLatch(1);
+        volatile boolean invalidated = false;
+
+        ScriptedConnection(ScriptedProcessor processor, String mailbox) {
+            super("localhost", 995, mailbox, "secret", false, null);
+            this.processor = processor;
+            this.mailbox = mailbox;
+        }
+
+        @Override
+        public Folder openInbox(int mode) throws MessagingException {
+            Thread trigger_thread = processor.interrupt_on_poll;
+            if (trigger_thread != null) trigger_thread.interrupt();
+
+            CountDownLatch hold = processor.hold;
+            while (hold != null) {
+                // like blocking socket I/O, the poll does not react to interrupts
+                try {
+                    hold.await();
+                    hold = null;
+                } catch (InterruptedException ignored) {}
+            }
+            if (!processor.mailboxes.containsKey(mailbox)) throw new MessagingException("authentication failed");
+            return new MailboxFolder(mailbox);
+        }
+
+        @Override
+        public void releaseInbox(Folder inbox, boolean expunge) {
+            released.add(expunge);
+            released_latch.countDown();
+        }
+
+        @Override
+        public void invalidate() {
+            invalidated = true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    static class MailboxFolder extends POP3Folder {
+        final String mailbox;
+
+        MailboxFolder(String mailbox) {
+            super(new POP3Store(Session.getInstance(new Properties()), null), "INBOX");
+            this.mailbox = mailbox;
+        }
+    }
+}
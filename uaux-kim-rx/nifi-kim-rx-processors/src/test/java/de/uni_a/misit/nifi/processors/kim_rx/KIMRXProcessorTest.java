@@ -16,24 +16,414 @@
  */
 package de.uni_a.misit.nifi.processors.kim_rx;
 
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessSession;
+import org.apache.nifi.util.SharedSessionState;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.eclipse.angus.mail.pop3.POP3Folder;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class KIMRXProcessorTest {
 
+    private static final String STATE_KEY_RESUME_UIDL = "kimrx.batch.resume.uidl";
+
+    @TempDir
+    File tempDir;
+
+    private ScriptedProcessor processor;
     private TestRunner testRunner;
 
     @BeforeEach
     public void init() {
-        testRunner = TestRunners.newTestRunner(KIMRXProcessor.class);
+        processor = new ScriptedProcessor();
+        testRunner = TestRunners.newTestRunner(processor);
+        testRunner.setProperty(KIMRXProcessor.KIMRX_TAG, "KIM_DEMO_TAG");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_POP3_SERVER_HOST, "localhost");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_POP3_SERVER_PORT, "995");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_POP3_SERVER_AUTH_USERNAME, "praxis.test@kim.telematik");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_POP3_SERVER_AUTH_PASSWORD, "secret");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_EMIT_MOST_RECENT_ONLY, "false");
+    }
+
+    @Test
+    public void testBatchResumesAtStoredUidl() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_BATCH_MAX_MESSAGES, "1");
+
+        // the first batch stops before the second mail, the second batch reaches the end of the mailbox
+        processor.polls.add(new Poll(Collections.singletonList(mail("first")), "uidl-2"));
+        processor.polls.add(new Poll(Collections.singletonList(mail("second")), null));
+
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 1);
+        testRunner.getStateManager().assertStateEquals(STATE_KEY_RESUME_UIDL, "uidl-2", Scope.CLUSTER);
+        // the POP3 session is kept for the next batch, the deletion is committed when it ends
+        assertEquals(Collections.singletonList(true), processor.connection.kept);
+        assertTrue(processor.connection.released.isEmpty());
+
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 2);
+        assertNull(testRunner.getStateManager().getState(Scope.CLUSTER).get(STATE_KEY_RESUME_UIDL));
+
+        assertEquals(Collections.singletonList(true), processor.connection.released);
+        assertEquals(2, processor.resumed_at.size());
+        assertNull(processor.resumed_at.get(0));
+        assertEquals("uidl-2", processor.resumed_at.get(1));
+    }
+
+    @Test
+    public void testFailedPollKeepsState() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_BATCH_MAX_MESSAGES, "1");
+        testRunner.getStateManager().setState(Collections.singletonMap(STATE_KEY_RESUME_UIDL, "uidl-2"), Scope.CLUSTER);
+
+        processor.polls.add(new Poll(new MessagingException("connection reset")));
+
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_FAILURE, 1);
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 0);
+
+        // the failed batch is polled again from the same mail
+        assertEquals(Collections.singletonList("uidl-2"), processor.resumed_at);
+        testRunner.getStateManager().assertStateEquals(STATE_KEY_RESUME_UIDL, "uidl-2", Scope.CLUSTER);
+        assertTrue(processor.connection.invalidated);
+    }
+
+    @Test
+    public void testMostRecentOnlyIgnoresBatchLimits() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_EMIT_MOST_RECENT_ONLY, "true");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_BATCH_MAX_MESSAGES, "1");
+        testRunner.getStateManager().setState(Collections.singletonMap(STATE_KEY_RESUME_UIDL, "uidl-2"), Scope.CLUSTER);
+
+        processor.polls.add(new Poll(Collections.singletonList(mail("recent")), null));
+
+        // the most recent mail is searched in the whole mailbox
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 1);
+        assertEquals(Collections.singletonList(null), processor.resumed_at);
+    }
+
+    @Test
+    public void testDecodeAttachmentsInParallel() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_DECODE_THREADS, "2");
+
+        processor.polls.add(new Poll(Arrays.asList(mail("first"), mail("second"), mail("third")), null));
+
+        // the attachments are decoded by the workers, the flow files keep the order of the mails
+        testRunner.run();
+        List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(KIMRXProcessor.RELATIONSHIP_SUCCESS);
+        assertEquals(3, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("first");
+        flowFiles.get(0).assertAttributeEquals("filename", "first.csv");
+        flowFiles.get(1).assertContentEquals("second");
+        flowFiles.get(2).assertContentEquals("third");
+    }
+
+    @Test
+    public void testOnlyConfirmedDuplicatesDropTheContent() throws Exception {
+        // a previous run emitted two attachments, its cache only kept the last one and the filter knows both
+        Path filter_file = tempDir.toPath().resolve("duplicates.bloom");
+        AttachmentDeduplicator previous_run = new AttachmentDeduplicator(filter_file, 1000000, 0.001, 1);
+        previous_run.add(sha256("first"));
+        previous_run.add(sha256("third"));
+        previous_run.save();
+
+        testRunner.setProperty(KIMRXProcessor.KIMRX_DETECT_DUPLICATES, "true");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_DUPLICATES_FILTER_FILE, filter_file.toString());
+        processor.polls.add(new Poll(Arrays.asList(mail("first"), mail("second"), mail("second"), mail("third")), null));
+
+        testRunner.run();
+        List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(KIMRXProcessor.RELATIONSHIP_SUCCESS);
+        assertEquals(2, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("first");
+        flowFiles.get(0).assertAttributeEquals(KIMRXProcessor.ATTRIBUTE_DUPLICATE_SUSPECTED, "true");
+        flowFiles.get(1).assertContentEquals("second");
+        flowFiles.get(1).assertAttributeNotExists(KIMRXProcessor.ATTRIBUTE_DUPLICATE_SUSPECTED);
+
+        // the second copy within the poll and the attachment cached before the restart are known exactly
+        List<MockFlowFile> duplicates = testRunner.getFlowFilesForRelationship(KIMRXProcessor.RELATIONSHIP_DUPLICATE);
+        assertEquals(2, duplicates.size());
+        duplicates.get(0).assertAttributeEquals(KIMRXProcessor.ATTRIBUTE_CONTENT_HASH, sha256("second"));
+        duplicates.get(1).assertAttributeEquals(KIMRXProcessor.ATTRIBUTE_CONTENT_HASH, sha256("third"));
+    }
+
+    @Test
+    public void testDeleteMailsAfterCommit() throws Exception {
+        MimeMessage msg = mail("first");
+        processor.polls.add(new Poll(Collections.singletonList(msg), null));
+
+        // the mail is flagged once the flow file is committed, QUIT of the inbox sends the DELE
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 1);
+        assertTrue(msg.isSet(Flags.Flag.DELETED));
+        assertEquals(Collections.singletonList(true), processor.connection.released);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testKeepMailsAfterFailedCommit() throws Exception {
+        MimeMessage msg = mail("first");
+        processor.polls.add(new Poll(Collections.singletonList(msg), null));
+
+        // the session fails its commit like the framework does when the content repository is unavailable
+        MockProcessSession mock_session = new MockProcessSession(new SharedSessionState(processor, new AtomicLong()), processor);
+        ProcessSession session = (ProcessSession) Proxy.newProxyInstance(ProcessSession.class.getClassLoader(),
+                new Class<?>[]{ProcessSession.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("commitAsync") && args != null && args.length == 2) {
+                        mock_session.rollback();
+                        ((Consumer<Throwable>) args[1]).accept(new ProcessException("commit failed"));
+                        return null;
+                    }
+                    try {
+                        return method.invoke(mock_session, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        ProcessContext context = testRunner.getProcessContext();
+        processor.onScheduled(context);
+        try {
+            processor.onTrigger(context, session);
+        } finally {
+            processor.onStopped();
+        }
+
+        assertFalse(msg.isSet(Flags.Flag.DELETED));
+        assertEquals(Collections.singletonList(false), processor.connection.released);
+        assertTrue(processor.connection.invalidated);
+    }
+
+    @Test
+    public void testBackOffWhileMailboxIsEmpty() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_EMPTY_POLL_BACKOFF_INITIAL, "1 min");
+        testRunner.setProperty(KIMRXProcessor.KIMRX_EMPTY_POLL_BACKOFF_MAX, "10 min");
+        processor.polls.add(new Poll(Collections.emptyList(), null));
+        processor.polls.add(new Poll(Collections.singletonList(mail("first")), null));
+
+        // the second trigger falls into the backoff after the empty poll and does not poll the mailbox
+        testRunner.run(2, false, true);
+        assertEquals(1, processor.resumed_at.size());
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_NO_NEW_MAIL, 1);
+
+        // an incoming flow file requests a poll anyway, the received mail ends the backoff for the next trigger
+        testRunner.enqueue("");
+        testRunner.run(2, true, false);
+        assertEquals(3, processor.resumed_at.size());
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 1);
+    }
+
+    @Test
+    public void testKeepRejectedChunksOnServer() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_CHUNK_DIRECTORY, tempDir.getAbsolutePath());
+
+        // the first chunk is stored until the transfer is complete, the second one is corrupted on the way
+        String transfer_hash = sha256("first chunk|second chunk");
+        MimeMessage stored = chunk("first chunk|", 0, transfer_hash, sha256("first chunk|"));
+        MimeMessage corrupted = chunk("second chunk", 1, transfer_hash, sha256("other content"));
+        processor.polls.add(new Poll(Arrays.asList(stored, corrupted), null));
+
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 0);
+        assertTrue(stored.isSet(Flags.Flag.DELETED));
+        assertFalse(corrupted.isSet(Flags.Flag.DELETED));
     }
 
     @Test
-    public void testProcessor() {
+    public void testDeleteStoredChunksWhenMailsAreKept() throws Exception {
+        testRunner.setProperty(KIMRXProcessor.KIMRX_CHUNK_DIRECTORY, tempDir.getAbsolutePath());
+        testRunner.setProperty(KIMRXProcessor.KIMRX_DELETE_MAILS, "false");
+
+        String transfer_hash = sha256("first chunk|second chunk");
+        MimeMessage first = chunk("first chunk|", 0, transfer_hash, sha256("first chunk|"));
+        MimeMessage second = chunk("second chunk", 1, transfer_hash, sha256("second chunk"));
+        MimeMessage plain = mail("plain");
+        processor.polls.add(new Poll(Arrays.asList(first, second, plain), null));
+
+        testRunner.run();
+        testRunner.assertTransferCount(KIMRXProcessor.RELATIONSHIP_SUCCESS, 2);
+
+        // the content of the chunks is emitted, the chunk mails must not be reassembled by the next poll again
+        assertTrue(first.isSet(Flags.Flag.DELETED));
+        assertTrue(second.isSet(Flags.Flag.DELETED));
+        assertFalse(plain.isSet(Flags.Flag.DELETED));
+        assertEquals(0, tempDir.list().length);
+    }
+
+    static MimeMessage chunk(String content, int sequence, String transfer_hash, String chunk_hash) throws Exception {
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG] (" + (sequence + 1) + "/2)\r\n"
+                + "Date: Fri, 16 Oct 2026 10:00:00 +0200\r\n"
+                + "X-KIM-Transfer-Id: transfer-1\r\n"
+                + "X-KIM-Transfer-Size: 24\r\n"
+                + "X-KIM-Transfer-SHA256: " + transfer_hash + "\r\n"
+                + "X-KIM-Chunk-Sequence: " + sequence + "\r\n"
+                + "X-KIM-Chunk-Count: 2\r\n"
+                + "X-KIM-Chunk-SHA256: " + chunk_hash + "\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=data.csv\r\n"
+                + "\r\n"
+                + Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.US_ASCII)) + "\r\n"
+                + "--kim-boundary--\r\n";
+
+        Session session = Session.getInstance(new Properties());
+        return new MimeMessage(session, new ByteArrayInputStream(raw_mail.getBytes(StandardCharsets.US_ASCII)));
+    }
 
+    static MimeMessage mail(String content) throws Exception {
+        Session session = Session.getInstance(new Properties());
+        return new MimeMessage(session, new ByteArrayInputStream(rawMail(content)));
     }
 
+    static byte[] rawMail(String content) {
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+                + "Date: Fri, 16 Oct 2026 10:00:00 +0200\r\n"
+                + "Message-ID: <" + content + "@kim.telematik>\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=" + content + ".csv\r\n"
+                + "\r\n"
+                + Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.US_ASCII)) + "\r\n"
+                + "--kim-boundary--\r\n";
+        return raw_mail.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String sha256(String content) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.US_ASCII));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    static class Poll {
+        final List<MimeMessage> mails;
+        final String resume_uidl;
+        final MessagingException failure;
+
+        Poll(List<MimeMessage> mails, String resume_uidl) {
+            this.mails = mails;
+            this.resume_uidl = resume_uidl;
+            this.failure = null;
+        }
+
+        Poll(MessagingException failure) {
+            this.mails = Collections.emptyList();
+            this.resume_uidl = null;
+            this.failure = failure;
+        }
+    }
+
+    static class ScriptedProcessor extends KIMRXProcessor {
+        // every trigger takes the next poll, the mailbox itself is never contacted
+        final Deque<Poll> polls = new ArrayDeque<>();
+        final List<String> resumed_at = new ArrayList<>();
+        final RecordingConnection connection = new RecordingConnection();
+
+        @Override
+        POP3Connection createConnection(final ProcessContext context) {
+            return connection;
+        }
+
+        @Override
+        POP3MailboxPoller createPoller(final KIMMailFilter mail_filter, final boolean most_recent_only, final boolean all_attachments,
+                                       final int batch_max_messages, final long batch_max_bytes) {
+            Poll poll = polls.poll();
+            return new POP3MailboxPoller(mail_filter, most_recent_only, all_attachments, batch_max_messages, batch_max_bytes) {
+                @Override
+                public List<MailAttachment> findMatches(POP3Folder inbox, POP3UIDLState seen_mails, String resume_at_uidl) throws MessagingException {
+                    resumed_at.add(resume_at_uidl);
+                    if (poll == null) return new ArrayList<>();
+                    if (poll.failure != null) throw poll.failure;
+
+                    List<MailAttachment> matches = new ArrayList<>();
+                    for (MimeMessage msg : poll.mails) {
+                        matches.add(POP3MessageUtil.findFileAttachment(msg));
+                    }
+                    return matches;
+                }
+
+                @Override
+                public String getResumeUidl() {
+                    return poll == null ? null : poll.resume_uidl;
+                }
+            };
+        }
+    }
+
+    static class RecordingConnection extends POP3Connection {
+        final List<Boolean> released = new ArrayList<>();
+        final List<Boolean> kept = new ArrayList<>();
+        boolean invalidated = false;
+
+        RecordingConnection() {
+            super("localhost", 995, "praxis.test@kim.telematik", "secret", false, null);
+        }
+
+        @Override
+        public synchronized Folder openInbox(int mode) {
+            // the scripted poller does not access the inbox
+            return null;
+        }
+
+        @Override
+        public synchronized void releaseInbox(Folder inbox, boolean expunge) {
+            released.add(expunge);
+        }
+
+        @Override
+        public synchronized void keepInbox(Folder inbox, boolean deletions_flagged) {
+            kept.add(deletions_flagged);
+        }
+
+        @Override
+        public synchronized void invalidate() {
+            invalidated = true;
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MailAttachmentBundleTest {
+
+    @Test
+    public void testWriteZipWithIndex() throws Exception {
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+                + "Date: Fri, 16 Oct 2026 10:00:00 +0200\r\n"
+                + "Message-ID: <kim-1@kim.telematik>\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=data.csv\r\n"
+                + "\r\n"
+                + "Zmlyc3Q=\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Disposition: attachment; filename=data.csv\r\n"
+                + "\r\n"
+                + "second\r\n"
+                + "--kim-boundary--\r\n";
+
+        Session session = Session.getInstance(new Properties());
+        MimeMessage msg = new MimeMessage(session, new ByteArrayInputStream(raw_mail.getBytes(StandardCharsets.US_ASCII)));
+        List<MailAttachment> attachments = POP3MessageUtil.findFileAttachments(msg);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailAttachmentBundle.writeZip(out, attachments, null);
+
+        // equally named attachments get distinct entries, the index comes last
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("00000_data.csv", entry.getName());
+            assertEquals("first", new String(zip.readAllBytes(), StandardCharsets.US_ASCII));
+
+            entry = zip.getNextEntry();
+            assertEquals("00001_data.csv", entry.getName());
+            assertEquals("second", new String(zip.readAllBytes(), StandardCharsets.US_ASCII));
+
+            entry = zip.getNextEntry();
+            assertEquals(MailAttachmentBundle.INDEX_ENTRY, entry.getName());
+            String index = new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(index.contains("\"entry\": \"00001_data.csv\""));
+            assertTrue(index.contains("\"from\": \"praxis.test@kim.telematik\""));
+            assertTrue(index.contains("\"message_id\": \"<kim-1@kim.telematik>\""));
+
+            assertNull(zip.getNextEntry());
+        }
+    }
+}
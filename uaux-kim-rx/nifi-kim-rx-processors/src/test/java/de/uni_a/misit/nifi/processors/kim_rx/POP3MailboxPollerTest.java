@@ -0,0 +1,76 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class POP3MailboxPollerTest {
+
+    @Test
+    public void testMostRecentMailPerTag() throws Exception {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("success", "KIM_DEMO_TAG");
+        tags.put("reports", "KIM_REPORT_TAG");
+        KIMMailFilter mail_filter = new KIMMailFilter(null, new SubjectTagMatcher(tags), null);
+
+        Message demo_old = mail("KIM_DEMO_TAG", "10:00", "demo-old");
+        Message report = mail("KIM_REPORT_TAG", "10:05", "report");
+        Message demo_new = mail("KIM_DEMO_TAG", "10:10", "demo-new");
+
+        // the newer demo mail does not supersede the report, both tags get their most recent mail
+        POP3MailboxPoller poller = new POP3MailboxPoller(mail_filter, true);
+        List<MailAttachment> matches = poller.findMostRecentMatches(Arrays.asList(demo_old, report, demo_new));
+        assertEquals(2, matches.size());
+        assertEquals(report, matches.get(0).getMessage());
+        assertEquals(demo_new, matches.get(1).getMessage());
+        assertEquals(Collections.singletonList(demo_old), poller.getSupersededMessages());
+    }
+
+    @Test
+    public void testMostRecentMailOnEqualDates() throws Exception {
+        KIMMailFilter mail_filter = new KIMMailFilter(null, "KIM_DEMO_TAG", null);
+
+        Message first = mail("KIM_DEMO_TAG", "10:00", "first");
+        Message second = mail("KIM_DEMO_TAG", "10:00", "second");
+        Message older = mail("KIM_DEMO_TAG", "09:00", "older");
+
+        // on equal dates the mail later in the maildrop wins
+        POP3MailboxPoller poller = new POP3MailboxPoller(mail_filter, true);
+        List<MailAttachment> matches = poller.findMostRecentMatches(Arrays.asList(first, second, older));
+        assertEquals(1, matches.size());
+        assertEquals(second, matches.get(0).getMessage());
+        assertEquals(Arrays.asList(first, older), poller.getSupersededMessages());
+    }
+
+    private static MimeMessage mail(String tag, String time, String content) throws Exception {
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [" + tag + "]\r\n"
+                + "Date: Fri, 16 Oct 2026 " + time + ":00 +0200\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=" + content + ".csv\r\n"
+                + "\r\n"
+                + Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.US_ASCII)) + "\r\n"
+                + "--kim-boundary--\r\n";
+
+        Session session = Session.getInstance(new Properties());
+        return new MimeMessage(session, new ByteArrayInputStream(raw_mail.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
@@ -0,0 +1,215 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedFileInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class POP3MessageUtilTest {
+
+    private static final long ATTACHMENT_SIZE = 32 * 1024 * 1024;
+    // eight times the heap of the receiver, a mail kept in memory cannot be received
+    private static final long LARGE_ATTACHMENT_SIZE = 256L * 1024 * 1024;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testStreamLargeAttachmentFromSpooledMail() throws Exception {
+        // the raw mail is spooled on disk, just like the POP3 file cache does it
+        File raw_mail = new File(tempDir, "mail.eml");
+        writeRawMail(raw_mail, ATTACHMENT_SIZE);
+
+        Session session = Session.getInstance(new Properties());
+        try (SharedFileInputStream raw_stream = new SharedFileInputStream(raw_mail)) {
+            MimeMessage msg = new MimeMessage(session, raw_stream);
+
+            MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg);
+            assertNotNull(attachment);
+            assertEquals("data.csv", attachment.getFileName());
+            assertEquals("base64", attachment.getEncoding());
+
+            // decode chunk-wise and compare against the generated pattern
+            long count = 0;
+            try (InputStream is = attachment.getInputStream()) {
+                byte[] buf = new byte[8192];
+                int length;
+                while ((length = is.read(buf)) != -1) {
+                    for (int i = 0; i < length; i++) {
+                        assertEquals(patternByte(count + i), buf[i]);
+                    }
+                    count += length;
+                }
+            }
+            assertEquals(ATTACHMENT_SIZE, count);
+        }
+    }
+
+    @Test
+    public void testReceiveLargeAttachmentWithBoundedHeap() throws Exception {
+        // a 256 MiB attachment (about 350 MB raw mail) is received in a JVM with a heap of 32 MiB
+        File raw_mail = new File(tempDir, "large.eml");
+        writeRawMail(raw_mail, LARGE_ATTACHMENT_SIZE);
+
+        Process receiver = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx32m",
+                "-cp", System.getProperty("java.class.path"),
+                BoundedHeapReceiver.class.getName(),
+                raw_mail.getAbsolutePath())
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(receiver.getInputStream().readAllBytes(), StandardCharsets.US_ASCII).trim();
+        assertTrue(receiver.waitFor(10, TimeUnit.MINUTES));
+        // an OutOfMemoryError ends the receiver with a non-zero exit code
+        assertEquals(0, receiver.exitValue(), output);
+        assertEquals(String.valueOf(LARGE_ATTACHMENT_SIZE), output);
+    }
+
+    @Test
+    public void testFindAllAttachments() throws Exception {
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+                + "Message-ID: <kim-1@kim.telematik>\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: text/plain; charset=us-ascii\r\n"
+                + "\r\n"
+                + "Dies ist eine automatisch generierte E-Mail.\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=first.csv\r\n"
+                + "\r\n"
+                + "Zmlyc3Q=\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "Content-Disposition: attachment; filename=second.csv\r\n"
+                + "\r\n"
+                + "second=3D2\r\n"
+                + "--kim-boundary--\r\n";
+
+        Session session = Session.getInstance(new Properties());
+        MimeMessage msg = new MimeMessage(session, new ByteArrayInputStream(raw_mail.getBytes(StandardCharsets.US_ASCII)));
+
+        List<MailAttachment> attachments = POP3MessageUtil.findFileAttachments(msg);
+        assertEquals(2, attachments.size());
+        for (int i = 0; i < attachments.size(); i++) {
+            assertEquals(i, attachments.get(i).getIndex());
+            assertEquals(2, attachments.get(i).getCount());
+            assertEquals("<kim-1@kim.telematik>", attachments.get(i).getMessageId());
+        }
+
+        // both parts are decoded concurrently
+        AttachmentDecoder decoder = new AttachmentDecoder(2);
+        try {
+            List<Path> files = decoder.decodeAll(attachments, tempDir);
+            assertEquals("first", Files.readString(files.get(0)));
+            assertEquals("second=2", Files.readString(files.get(1)));
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    @Test
+    public void testDecompressAttachment() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gz = new GZIPOutputStream(compressed)) {
+            gz.write("id;value\n1;2\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        String raw_mail = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=data.csv.gz\r\n"
+                + "X-KIM-Content-Codec: gzip\r\n"
+                + "\r\n"
+                + Base64.getMimeEncoder().encodeToString(compressed.toByteArray()) + "\r\n"
+                + "--kim-boundary--\r\n";
+
+        Session session = Session.getInstance(new Properties());
+        MimeMessage msg = new MimeMessage(session, new ByteArrayInputStream(raw_mail.getBytes(StandardCharsets.US_ASCII)));
+
+        // the attachment is emitted as the sender's file
+        MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg);
+        assertNotNull(attachment);
+        assertEquals("data.csv", attachment.getFileName());
+        try (InputStream is = attachment.getInputStream()) {
+            assertEquals("id;value\n1;2\n", new String(is.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static byte patternByte(long i) {
+        return (byte) (i % 251);
+    }
+
+    private static void writeRawMail(File file, long attachment_size) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 65536)) {
+            String header = "From: praxis.test@kim.telematik\r\n"
+                    + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+                    + "Date: Fri, 16 Oct 2026 10:00:00 +0200\r\n"
+                    + "MIME-Version: 1.0\r\n"
+                    + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                    + "\r\n"
+                    + "--kim-boundary\r\n"
+                    + "Content-Type: text/plain; charset=us-ascii\r\n"
+                    + "\r\n"
+                    + "Dies ist eine automatisch generierte E-Mail.\r\n"
+                    + "--kim-boundary\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Transfer-Encoding: base64\r\n"
+                    + "Content-Disposition: attachment; filename=data.csv\r\n"
+                    + "\r\n";
+            os.write(header.getBytes(StandardCharsets.US_ASCII));
+
+            // keep the file stream open when the encoder is closed
+            OutputStream b64 = Base64.getMimeEncoder().wrap(new FilterOutputStream(os) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            byte[] buf = new byte[8192];
+            for (long written = 0; written < attachment_size; written += buf.length) {
+                for (int i = 0; i < buf.length; i++) {
+                    buf[i] = patternByte(written + i);
+                }
+                b64.write(buf, 0, (int) Math.min(buf.length, attachment_size - written));
+            }
+            b64.close();
+
+            os.write("\r\n--kim-boundary--\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
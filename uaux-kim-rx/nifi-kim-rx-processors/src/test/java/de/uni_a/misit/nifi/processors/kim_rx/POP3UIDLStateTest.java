@@ -0,0 +1,79 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import org.apache.nifi.state.MockStateMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class POP3UIDLStateTest {
+
+    // server UIDLs can be up to 70 characters long
+    private static final String LONG_UIDL = "AAAAB3NzaC1yc2EAAAADAQABAAABAQC7vbqajDhA5mL1Fvs0GQn3TQwYg5pWk0ZQ8gwxT9a";
+
+    @Test
+    public void testStateRoundTrip() {
+        POP3UIDLState seen_mails = new POP3UIDLState(10);
+        seen_mails.add("uidl-1");
+        seen_mails.add(LONG_UIDL);
+
+        Map<String, String> state = seen_mails.toStateMap();
+        // only fixed length hashes are stored
+        assertEquals(11 + 1 + 11, state.values().iterator().next().length());
+
+        POP3UIDLState restored = POP3UIDLState.fromStateMap(new MockStateMap(state, 1), 10);
+        assertEquals(2, restored.size());
+        assertTrue(restored.contains("uidl-1"));
+        assertTrue(restored.contains(LONG_UIDL));
+        assertFalse(restored.contains("uidl-2"));
+    }
+
+    @Test
+    public void testConvertPlainUidls() {
+        // state written by earlier versions contains the plain UIDLs
+        POP3UIDLState restored = POP3UIDLState.fromStateMap(new MockStateMap(Map.of("kimrx.seen.uidls", "uidl-1 uidl-2"), 1), 10);
+        assertTrue(restored.contains("uidl-1"));
+        assertTrue(restored.contains("uidl-2"));
+        assertFalse(restored.toStateMap().containsKey("kimrx.seen.uidls"));
+    }
+
+    @Test
+    public void testRetainOnly() {
+        POP3UIDLState seen_mails = new POP3UIDLState(10);
+        seen_mails.add("uidl-1");
+        seen_mails.add("uidl-2");
+        seen_mails.add("uidl-3");
+
+        // uidl-2 was deleted from the server
+        seen_mails.retainOnly(List.of("uidl-1", "uidl-3", "uidl-4"));
+        assertEquals(2, seen_mails.size());
+        assertTrue(seen_mails.contains("uidl-1"));
+        assertFalse(seen_mails.contains("uidl-2"));
+        assertTrue(seen_mails.contains("uidl-3"));
+        assertFalse(seen_mails.contains("uidl-4"));
+    }
+
+    @Test
+    public void testNoEvictionOfMailsOnServer() {
+        // more seen mails than the configured maximum are still on the server
+        POP3UIDLState seen_mails = new POP3UIDLState(2);
+        seen_mails.add("uidl-1");
+        seen_mails.add("uidl-2");
+        seen_mails.add("uidl-3");
+        seen_mails.retainOnly(List.of("uidl-1", "uidl-2", "uidl-3"));
+
+        // none of them is considered unseen again, the state only reports its size
+        assertTrue(seen_mails.contains("uidl-1"));
+        assertTrue(seen_mails.contains("uidl-3"));
+        assertTrue(seen_mails.isOverCapacity());
+
+        // entries are evicted once the server no longer lists their mails
+        seen_mails.retainOnly(List.of("uidl-3"));
+        assertEquals(1, seen_mails.size());
+        assertFalse(seen_mails.isOverCapacity());
+    }
+}
@@ -0,0 +1,23 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import org.apache.nifi.processor.Processor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ProcessorServicesTest {
+
+    @Test
+    public void testAllProcessorsRegistered() {
+        // NiFi discovers the processors of the NAR through this service file
+        Set<Class<?>> processors = ServiceLoader.load(Processor.class).stream()
+                .map(ServiceLoader.Provider::type)
+                .filter(type -> type.getPackageName().equals(KIMRXProcessor.class.getPackageName()))
+                .collect(Collectors.toSet());
+        assertEquals(Set.of(KIMRXProcessor.class, KIMRXMultiMailboxProcessor.class, KIMRXIMAPProcessor.class), processors);
+    }
+}
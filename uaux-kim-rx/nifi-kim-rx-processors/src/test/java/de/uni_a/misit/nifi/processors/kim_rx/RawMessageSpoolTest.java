@@ -0,0 +1,119 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RawMessageSpoolTest {
+
+    private static final String RAW_MAIL = "From: praxis.test@kim.telematik\r\n"
+            + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+            + "MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+            + "\r\n"
+            + "--kim-boundary\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "Content-Disposition: attachment; filename=data.csv\r\n"
+            + "\r\n"
+            + "Zmlyc3Q=\r\n"
+            + "--kim-boundary--\r\n";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testRetrySpooledMail() throws Exception {
+        RawMessageSpool spool = new RawMessageSpool(tempDir.toPath(), 1024 * 1024);
+        Session session = Session.getInstance(new Properties());
+        MimeMessage msg = new MimeMessage(session, new ByteArrayInputStream(RAW_MAIL.getBytes(StandardCharsets.US_ASCII)));
+
+        spool.retrieve("UID-1", msg).close();
+        assertEquals(1, Objects.requireNonNull(tempDir.list()).length);
+
+        // the second retrieval does not touch the mailbox message at all
+        try (RawMessageSpool.FileMessage spooled = spool.retrieve("UID-1", null)) {
+            MailAttachment attachment = POP3MessageUtil.findFileAttachment(spooled);
+            assertNotNull(attachment);
+            try (InputStream is = attachment.getInputStream()) {
+                assertEquals("first", new String(is.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+        }
+
+        // removed after the commit
+        spool.remove("UID-1");
+        assertEquals(0, Objects.requireNonNull(tempDir.list()).length);
+    }
+
+    @Test
+    public void testStreamMailToTemporaryFile() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage msg = new MimeMessage(session, new ByteArrayInputStream(RAW_MAIL.getBytes(StandardCharsets.US_ASCII)));
+
+        // large mails are parsed from the written file instead of the message in memory
+        Path raw_file = RawMessageSpool.storeTemporary(msg, tempDir);
+        try (RawMessageSpool.FileMessage content = RawMessageSpool.load(raw_file)) {
+            MailAttachment attachment = POP3MessageUtil.findFileAttachment(msg, content);
+            assertNotNull(attachment);
+            try (InputStream is = attachment.getInputStream()) {
+                assertEquals("first", new String(is.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+        }
+
+        Files.delete(raw_file);
+        assertEquals(0, Objects.requireNonNull(tempDir.list()).length);
+    }
+
+    @Test
+    public void testLoadMailLargerThanMappingLimit() throws Exception {
+        // the first part is a hole of more than 2 GiB, the attachment starts beyond the range of a single mapping
+        String head = "From: praxis.test@kim.telematik\r\n"
+                + "Subject: KIM TX [KIM_DEMO_TAG]\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"kim-boundary\"\r\n"
+                + "\r\n"
+                + "--kim-boundary\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n";
+        String tail = "\r\n--kim-boundary\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=data.csv\r\n"
+                + "\r\n"
+                + "Zmlyc3Q=\r\n"
+                + "--kim-boundary--\r\n";
+
+        Path raw_file = new File(tempDir, "large.eml").toPath();
+        try (RandomAccessFile file = new RandomAccessFile(raw_file.toFile(), "rw")) {
+            file.write(head.getBytes(StandardCharsets.US_ASCII));
+            // sparse, the hole does not occupy any disk space
+            file.seek(Integer.MAX_VALUE + 1024L * 1024);
+            file.write(tail.getBytes(StandardCharsets.US_ASCII));
+        }
+        assertTrue(Files.size(raw_file) > Integer.MAX_VALUE);
+
+        try (RawMessageSpool.FileMessage content = RawMessageSpool.load(raw_file)) {
+            MailAttachment attachment = POP3MessageUtil.findFileAttachment(content);
+            assertNotNull(attachment);
+            assertEquals("data.csv", attachment.getFileName());
+            try (InputStream is = attachment.getInputStream()) {
+                assertEquals("first", new String(is.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package de.uni_a.misit.nifi.processors.kim_rx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SubjectTagMatcherTest {
+
+    @Test
+    public void testMatchOverlappingTags() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("study_a", "[STUDY_A]");
+        tags.put("study_ab", "[STUDY_AB]");
+        tags.put("suffix", "AB]");
+        tags.put("study_a_copy", "[STUDY_A]");
+        SubjectTagMatcher matcher = new SubjectTagMatcher(tags);
+
+        assertEquals(new HashSet<>(Arrays.asList("study_ab", "suffix")), matcher.match("KIM TX [STUDY_AB]"));
+        assertEquals(new HashSet<>(Arrays.asList("study_a", "study_a_copy")), matcher.match("[[STUDY_A]"));
+        assertEquals(Collections.emptySet(), matcher.match("KIM TX [STUDY_"));
+
+        assertTrue(matcher.matches("Re: [STUDY_A] data"));
+        assertFalse(matcher.matches("[STUDY_B]"));
+    }
+}
@@ -0,0 +1,59 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncSendExecutor {
+    private final ExecutorService workers;
+    private final Semaphore in_flight;
+
+    public AsyncSendExecutor(int max_in_flight) {
+        // the workers are only blocked by the SMTP round trips, the semaphore bounds them per server
+        this.workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "KIM TX send worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.in_flight = new Semaphore(max_in_flight);
+    }
+
+    public boolean tryAcquire() {
+        return in_flight.tryAcquire();
+    }
+
+    public void release() {
+        in_flight.release();
+    }
+
+    public void submit(Runnable send) {
+        // takes over the permit obtained with tryAcquire, it is released once the send completed
+        try {
+            workers.execute(() -> {
+                try {
+                    send.run();
+                } finally {
+                    in_flight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            in_flight.release();
+            throw e;
+        }
+    }
+
+    public void shutdown(long timeout_millis) {
+        // sends in flight are completed and committed, only sends that do not finish in time are interrupted
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeout_millis, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ChunkedTransfer {
+    // mail headers evaluated by the receiver to reassemble the transfer
+    public static final String HEADER_TRANSFER_ID = "X-KIM-Transfer-Id";
+    public static final String HEADER_TRANSFER_SIZE = "X-KIM-Transfer-Size";
+    public static final String HEADER_TRANSFER_SHA256 = "X-KIM-Transfer-SHA256";
+    public static final String HEADER_CHUNK_SEQUENCE = "X-KIM-Chunk-Sequence";
+    public static final String HEADER_CHUNK_COUNT = "X-KIM-Chunk-Count";
+    public static final String HEADER_CHUNK_SHA256 = "X-KIM-Chunk-SHA256";
+
+    private final String transfer_id;
+    private final long chunk_size;
+    private final long size;
+    private final List<String> chunk_hashes;
+    private final String transfer_hash;
+
+    private ChunkedTransfer(String transfer_id, long chunk_size, long size, List<String> chunk_hashes, String transfer_hash) {
+        this.transfer_id = transfer_id;
+        this.chunk_size = chunk_size;
+        this.size = size;
+        this.chunk_hashes = chunk_hashes;
+        this.transfer_hash = transfer_hash;
+    }
+
+    public static ChunkedTransfer plan(String transfer_id, InputStream content, long chunk_size) throws IOException {
+        // The headers are written in front of the mail body, so all checksums are calculated in a first pass.
+        // Only the digests are kept, the content is read again while the chunks are sent.
+        MessageDigest transfer_digest = newSha256Digest();
+        List<String> chunk_hashes = new ArrayList<>();
+        long size = 0;
+        byte[] buf = new byte[8192];
+        try (InputStream is = new DigestInputStream(nonClosing(content), transfer_digest)) {
+            while (true) {
+                MessageDigest chunk_digest = newSha256Digest();
+                long chunk_length = 0;
+                int length;
+                while (chunk_length < chunk_size
+                        && (length = is.read(buf, 0, (int) Math.min(buf.length, chunk_size - chunk_length))) != -1) {
+                    chunk_digest.update(buf, 0, length);
+                    chunk_length += length;
+                }
+                if (chunk_length == 0 && !chunk_hashes.isEmpty()) break;
+
+                chunk_hashes.add(toHex(chunk_digest.digest()));
+                size += chunk_length;
+                if (chunk_length < chunk_size) break;
+            }
+        }
+        return new ChunkedTransfer(transfer_id, chunk_size, size, chunk_hashes, toHex(transfer_digest.digest()));
+    }
+
+    public String getTransferId() {
+        return transfer_id;
+    }
+
+    public int getChunkCount() {
+        return chunk_hashes.size();
+    }
+
+    public InputStream getChunk(InputStream content, int sequence) {
+        // the chunks are read one after another from the same stream, each ends after its length
+        long remaining = Math.min(chunk_size, size - sequence * chunk_size);
+        return new FilterInputStream(content) {
+            private long left = remaining;
+
+            @Override
+            public int read() throws IOException {
+                if (left <= 0) return -1;
+                int b = super.read();
+                if (b != -1) left--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (left <= 0) return -1;
+                int length = super.read(b, off, (int) Math.min(len, left));
+                if (length > 0) left -= length;
+                return length;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(Math.min(n, left));
+                left -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(super.available(), left);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    public Map<String, String> getHeaders(int sequence) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(HEADER_TRANSFER_ID, transfer_id);
+        headers.put(HEADER_TRANSFER_SIZE, String.valueOf(size));
+        headers.put(HEADER_TRANSFER_SHA256, transfer_hash);
+        headers.put(HEADER_CHUNK_SEQUENCE, String.valueOf(sequence));
+        headers.put(HEADER_CHUNK_COUNT, String.valueOf(chunk_hashes.size()));
+        headers.put(HEADER_CHUNK_SHA256, chunk_hashes.get(sequence));
+        return headers;
+    }
+
+    private static InputStream nonClosing(InputStream content) {
+        return new FilterInputStream(content) {
+            @Override
+            public void close() {}
+        };
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
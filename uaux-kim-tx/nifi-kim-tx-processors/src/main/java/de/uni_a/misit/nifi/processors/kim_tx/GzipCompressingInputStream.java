@@ -0,0 +1,69 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+public class GzipCompressingInputStream extends SequenceInputStream {
+    // gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Deflater deflater;
+
+    public GzipCompressingInputStream(InputStream content) {
+        this(content, new CRC32(), new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    }
+
+    private GzipCompressingInputStream(InputStream content, CRC32 crc, Deflater deflater) {
+        // GZIPOutputStream only writes to a stream, the mail body however reads its content from a stream;
+        // so the gzip format is produced while reading: header, raw deflate data and the CRC32/size trailer
+        super(new Enumeration<InputStream>() {
+            private int part = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return part < 3;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                switch (part++) {
+                    case 0:
+                        return new ByteArrayInputStream(HEADER);
+                    case 1:
+                        return new DeflaterInputStream(new CheckedInputStream(content, crc), deflater, 65536) {
+                            @Override
+                            public void close() {
+                                // the content is closed by its owner, the deflater once the trailer is written
+                            }
+                        };
+                    case 2:
+                        // the trailer is only requested after the content was read completely
+                        long crc_value = crc.getValue();
+                        long size = deflater.getBytesRead();
+                        deflater.end();
+                        return new ByteArrayInputStream(new byte[]{
+                                (byte) crc_value, (byte) (crc_value >> 8), (byte) (crc_value >> 16), (byte) (crc_value >> 24),
+                                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+                        });
+                    default:
+                        throw new NoSuchElementException();
+                }
+            }
+        });
+        this.deflater = deflater;
+    }
+
+    @Override
+    public void close() {
+        // The content is closed by its owner. The native memory of the deflater is released right away,
+        // also if the send was aborted before the trailer was read.
+        deflater.end();
+    }
+}
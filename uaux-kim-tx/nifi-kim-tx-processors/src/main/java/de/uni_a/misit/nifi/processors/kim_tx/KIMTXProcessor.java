@@ -16,19 +16,26 @@
  */
 package de.uni_a.misit.nifi.processors.kim_tx;
 
+import jakarta.mail.internet.AddressException;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
@@ -36,10 +43,14 @@ import org.apache.nifi.processor.util.StandardValidators;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static de.uni_a.misit.nifi.processors.kim_tx.SMTPMailUtil.sendMailMessage;
@@ -48,8 +59,11 @@ import static de.uni_a.misit.nifi.processors.kim_tx.SMTPMailUtil.sendMailMessage
 @CapabilityDescription("Sends an incoming datasource via SMTP to a KIM endpoint")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="filename", description="Name of file for mail attachment")})
-@WritesAttributes({})
-public class KIMTXProcessor extends AbstractProcessor {
+@WritesAttributes({
+    @WritesAttribute(attribute="kim.transfer.id", description="Transfer id of a flow file that was sent in chunks"),
+    @WritesAttribute(attribute="kim.transfer.chunks", description="Number of mails a flow file was split into"),
+})
+public class KIMTXProcessor extends AbstractSessionFactoryProcessor {
     // Regex from https://stackoverflow.com/a/201378
     // private static final Pattern EMAIL_ADDRESS_REGEX_PATTERN = Pattern.compile("(?:[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*|\"(?:[\\x01-\\x08\\x0b\\x0c\\x0e-\\x1f\\x21\\x23-\\x5b\\x5d-\\x7f]|\\\\[\\x01-\\x09\\x0b\\x0c\\x0e-\\x7f])*\")@(?:(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?|\\[(?:(?:(2(5[0-5]|[0-4][0-9])|1[0-9][0-9]|[1-9]?[0-9]))\\.){3}(?:(2(5[0-5]|[0-4][0-9])|1[0-9][0-9]|[1-9]?[0-9])|[a-z0-9-]*[a-z0-9]:(?:[\\x01-\\x08\\x0b\\x0c\\x0e-\\x1f\\x21-\\x5a\\x53-\\x7f]|\\\\[\\x01-\\x09\\x0b\\x0c\\x0e-\\x7f])+)\\])");
     // -> Cannot be used because praxis.test@kim.telematik is a valid mail address in KIM.
@@ -146,6 +160,84 @@ public class KIMTXProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
             .required(false)
             .build();
+    public static final PropertyDescriptor KIMTX_SMTP_POOL_SIZE = new PropertyDescriptor
+            .Builder().name("KIMTX_SMTP_POOL_SIZE")
+            .displayName("SMTP connection pool size")
+            .description("Number of authenticated SMTP connections kept open between two mails. Mails sent back to back reuse a connection "
+                    + "instead of performing a TLS handshake and login for every mail.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor KIMTX_SMTP_KEEPALIVE_INTERVAL = new PropertyDescriptor
+            .Builder().name("KIMTX_SMTP_KEEPALIVE_INTERVAL")
+            .displayName("SMTP keepalive interval")
+            .description("Idle pooled connections are checked with a NOOP command in this interval, so they are not dropped by the server.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("30 sec")
+            .build();
+    public static final PropertyDescriptor KIMTX_SMTP_CONNECTION_MAX_AGE = new PropertyDescriptor
+            .Builder().name("KIMTX_SMTP_CONNECTION_MAX_AGE")
+            .displayName("SMTP connection maximum age")
+            .description("Pooled connections older than this are closed and replaced by a new connection.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .defaultValue("10 min")
+            .build();
+    public static final String COMPRESSION_NONE = "none";
+    public static final PropertyDescriptor KIMTX_COMPRESSION = new PropertyDescriptor
+            .Builder().name("KIMTX_COMPRESSION")
+            .displayName("Attachment compression")
+            .description("If gzip, the attachment is compressed while it is sent and marked with the " + SMTPMailUtil.HEADER_CONTENT_CODEC + " header. "
+                    + "KIM RX decompresses it transparently, other receivers get the file with a .gz suffix.")
+            .allowableValues(COMPRESSION_NONE, SMTPMailUtil.CODEC_GZIP)
+            .defaultValue(COMPRESSION_NONE)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMTX_CHUNK_SIZE = new PropertyDescriptor
+            .Builder().name("KIMTX_CHUNK_SIZE")
+            .displayName("Chunk size")
+            .description("If provided, flow files larger than this are split into several mails with attachments of at most this size. "
+                    + "The mails carry a transfer id, their sequence number and SHA-256 checksums, so the receiver can reassemble and verify the content.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMTX_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("KIMTX_BATCH_SIZE")
+            .displayName("Batch size")
+            .description("Maximum number of flow files sent per trigger. All mails of a batch are sent over a single SMTP connection "
+                    + "and committed together, every flow file is routed to success or failure on its own.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor KIMTX_BATCH_MAX_SIZE = new PropertyDescriptor
+            .Builder().name("KIMTX_BATCH_MAX_SIZE")
+            .displayName("Batch data size")
+            .description("If provided, a batch ends before the flow file that would exceed this content size. A single larger flow file is still sent on its own.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(false)
+            .build();
+    public static final PropertyDescriptor KIMTX_ASYNC_SEND = new PropertyDescriptor
+            .Builder().name("KIMTX_ASYNC_SEND")
+            .displayName("Asynchronous sending")
+            .description("If true, the batches are sent by internal send workers instead of the NiFi thread. The NiFi thread only takes the batch "
+                    + "from the queue, the worker routes the flow files and commits them once the mails are sent.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor KIMTX_MAX_IN_FLIGHT_SENDS = new PropertyDescriptor
+            .Builder().name("KIMTX_MAX_IN_FLIGHT_SENDS")
+            .displayName("Maximum sends in flight")
+            .description("Maximum number of batches sent to the SMTP server at the same time when sending asynchronously. Further flow files "
+                    + "stay queued until a send completed. The SMTP connection pool size should be at least this number.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .defaultValue("4")
+            .build();
 
     // Relationships
     public static final Relationship RELATIONSHIP_SUCCESS = new Relationship
@@ -158,10 +250,21 @@ public class KIMTXProcessor extends AbstractProcessor {
             .name("failure")
             .description("Something went wrong during the mail assembly and transmission.")
             .build();
+    public static final String ATTRIBUTE_TRANSFER_ID = "kim.transfer.id";
+    public static final String ATTRIBUTE_TRANSFER_CHUNKS = "kim.transfer.chunks";
+
+    private static final long SEND_SHUTDOWN_TIMEOUT_MILLIS = 60000;
+
     private List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
 
+    private volatile SMTPTransportPool transport_pool;
+
+    private volatile AsyncSendExecutor send_executor;
+
+    private volatile MailTemplate mail_template;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         descriptors = new ArrayList<>();
@@ -175,6 +278,15 @@ public class KIMTXProcessor extends AbstractProcessor {
         descriptors.add(KIMTX_SMTP_SERVER_AUTH_PASSWORD);
         descriptors.add(KIMTX_SMTP_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT);
         descriptors.add(KIMTX_MAIL_ATTACH_FORCE_FILENAME);
+        descriptors.add(KIMTX_SMTP_POOL_SIZE);
+        descriptors.add(KIMTX_SMTP_KEEPALIVE_INTERVAL);
+        descriptors.add(KIMTX_SMTP_CONNECTION_MAX_AGE);
+        descriptors.add(KIMTX_COMPRESSION);
+        descriptors.add(KIMTX_CHUNK_SIZE);
+        descriptors.add(KIMTX_BATCH_SIZE);
+        descriptors.add(KIMTX_BATCH_MAX_SIZE);
+        descriptors.add(KIMTX_ASYNC_SEND);
+        descriptors.add(KIMTX_MAX_IN_FLIGHT_SENDS);
         descriptors = Collections.unmodifiableList(descriptors);
 
         relationships = new HashSet<>();
@@ -193,62 +305,248 @@ public class KIMTXProcessor extends AbstractProcessor {
         return descriptors;
     }
 
-    @OnScheduled
-    public void onScheduled(final ProcessContext context) {
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        // the addresses are parsed like the mail does, so no receiver is dropped when the mails are sent
+        List<ValidationResult> results = new ArrayList<>();
+        validateAddresses(context.getProperty(KIMTX_MAIL_TO_LIST).getValue(), KIMTX_MAIL_TO_LIST, results);
+        validateAddresses(context.getProperty(KIMTX_MAIL_FROM).getValue(), KIMTX_MAIL_FROM, results);
+        return results;
+    }
 
+    private static void validateAddresses(final String value, final PropertyDescriptor descriptor, final List<ValidationResult> results) {
+        if (value == null) return;
+        for (String address : splitAddressList(value)) {
+            try {
+                MailTemplate.parseAddress(address);
+            } catch (AddressException e) {
+                results.add(new ValidationResult.Builder()
+                        .subject(descriptor.getDisplayName())
+                        .input(address)
+                        .valid(false)
+                        .explanation("the mail address " + address + " is invalid: " + e.getMessage())
+                        .build());
+            }
+        }
     }
 
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        FlowFile flowFile = session.get();
-        if ( flowFile == null ) {
-            return;
+    private static List<String> splitAddressList(final String value) {
+        List<String> addresses = new ArrayList<>();
+        for (String address : value.split(",")) {
+            if (!address.isBlank()) addresses.add(address.trim());
         }
+        return addresses;
+    }
 
-        // Obtain descriptor settings
-        List<String> mail_to_list = List.of(context.getProperty(KIMTX_MAIL_TO_LIST).getValue().split(","));
-        String mail_from = context.getProperty(KIMTX_MAIL_FROM).getValue();
-        String mail_subject = context.getProperty(KIMTX_MAIL_SUBJECT).getValue();
-        String mail_text = context.getProperty(KIMTX_MAIL_TEXT).getValue();
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        // addresses, subject and text are the same for every mail, they are parsed and encoded once
+        mail_template = new MailTemplate(
+                context.getProperty(KIMTX_MAIL_FROM).getValue(),
+                splitAddressList(context.getProperty(KIMTX_MAIL_TO_LIST).getValue()),
+                context.getProperty(KIMTX_MAIL_SUBJECT).getValue(),
+                context.getProperty(KIMTX_MAIL_TEXT).getValue()
+        );
+
+        // the session and its connections are kept between the triggers
+        transport_pool = createTransportPool(context);
+        if (context.getProperty(KIMTX_ASYNC_SEND).asBoolean()) {
+            send_executor = new AsyncSendExecutor(context.getProperty(KIMTX_MAX_IN_FLIGHT_SENDS).asInteger());
+        }
+    }
+
+    SMTPTransportPool createTransportPool(final ProcessContext context) {
         String smtp_host = context.getProperty(KIMTX_SMTP_SERVER_HOST).getValue();
         int smtp_port = context.getProperty(KIMTX_SMTP_SERVER_PORT).asInteger();
         String auth_username = context.getProperty(KIMTX_SMTP_SERVER_AUTH_USERNAME).getValue();
         String auth_password = context.getProperty(KIMTX_SMTP_SERVER_AUTH_PASSWORD).getValue();
         boolean allow_insecure_tls = context.getProperty(KIMTX_SMTP_SERVER_AUTH_ALLOW_INSECURE_TLS_CONTEXT).asBoolean();
-        String forced_attachment_filename = context.getProperty(KIMTX_MAIL_ATTACH_FORCE_FILENAME).getValue();
 
+        return new SMTPTransportPool(
+                smtp_host, smtp_port, auth_username, auth_password, allow_insecure_tls,
+                context.getProperty(KIMTX_SMTP_POOL_SIZE).asInteger(),
+                context.getProperty(KIMTX_SMTP_CONNECTION_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(KIMTX_SMTP_KEEPALIVE_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS)
+        );
+    }
 
-        // Obtain filename for attachment
-        String filename = flowFile.getAttribute("filename");
-        if (forced_attachment_filename != null && !forced_attachment_filename.isBlank())
-            filename = forced_attachment_filename;
+    @OnStopped
+    public void onStopped() {
+        // the sends in flight still need their connections
+        if (send_executor != null) {
+            send_executor.shutdown(SEND_SHUTDOWN_TIMEOUT_MILLIS);
+            send_executor = null;
+        }
+        if (transport_pool != null) {
+            transport_pool.close();
+            transport_pool = null;
+        }
+    }
 
-        // Attach file descriptor for content
-        try {
-            InputStream data_stream = session.read(flowFile);
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+        AsyncSendExecutor executor = send_executor;
+        if (executor == null) {
+            // the batch is sent on the NiFi thread
+            ProcessSession session = sessionFactory.createSession();
             try {
+                List<FlowFile> flowFiles = pollBatch(context, session);
+                if (!flowFiles.isEmpty()) sendBatch(context, session, flowFiles);
+                session.commit();
+            } catch (Throwable t) {
+                session.rollback(true);
+                throw t;
+            }
+            return;
+        }
+
+        if (!executor.tryAcquire()) {
+            // the maximum number of sends is in flight, the flow files stay queued
+            context.yield();
+            return;
+        }
+        ProcessSession session = sessionFactory.createSession();
+        List<FlowFile> flowFiles;
+        try {
+            flowFiles = pollBatch(context, session);
+        } catch (Throwable t) {
+            executor.release();
+            session.rollback(true);
+            throw t;
+        }
+        if (flowFiles.isEmpty()) {
+            executor.release();
+            session.commit();
+            return;
+        }
+
+        // The session is handed over to a send worker, which routes and commits the flow files once the
+        // mails are sent. The NiFi thread returns immediately, so a burst does not hold the timer-driven threads.
+        try {
+            executor.submit(() -> {
+                try {
+                    sendBatch(context, session, flowFiles);
+                    session.commit();
+                } catch (Throwable t) {
+                    getLogger().error("Failed to send a batch of {} flow files, the flow files are queued again", flowFiles.size(), t);
+                    session.rollback(true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the processor is being stopped
+            session.rollback();
+        }
+    }
+
+    private static List<FlowFile> pollBatch(final ProcessContext context, final ProcessSession session) {
+        int batch_max_flow_files = context.getProperty(KIMTX_BATCH_SIZE).asInteger();
+        long batch_max_bytes = context.getProperty(KIMTX_BATCH_MAX_SIZE).isSet()
+                ? context.getProperty(KIMTX_BATCH_MAX_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+        return session.get(new BatchFlowFileFilter(batch_max_flow_files, batch_max_bytes));
+    }
+
+    private void sendBatch(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles) {
+        // Obtain descriptor settings
+        MailTemplate template = mail_template;
+        String forced_attachment_filename = context.getProperty(KIMTX_MAIL_ATTACH_FORCE_FILENAME).getValue();
+        boolean compress = SMTPMailUtil.CODEC_GZIP.equals(context.getProperty(KIMTX_COMPRESSION).getValue());
+        long chunk_size = context.getProperty(KIMTX_CHUNK_SIZE).isSet()
+                ? context.getProperty(KIMTX_CHUNK_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+
+        // all mails of the trigger are sent over a single connection, each flow file is routed on its own
+        try (SMTPTransportPool.Batch batch = transport_pool.openBatch()) {
+            for (FlowFile flowFile : flowFiles) {
+                // Obtain filename for attachment
+                String filename = flowFile.getAttribute("filename");
+                if (forced_attachment_filename != null && !forced_attachment_filename.isBlank())
+                    filename = forced_attachment_filename;
+
+                // Attach file descriptor for content
+                try {
+                    if (flowFile.getSize() > chunk_size) {
+                        // large flow files are sent as several mails over the connection of the batch
+                        ChunkedTransfer transfer = sendChunkedMailMessages(session, flowFile, batch, chunk_size,
+                                template, filename, compress);
+                        flowFile = session.putAttribute(flowFile, ATTRIBUTE_TRANSFER_ID, transfer.getTransferId());
+                        flowFile = session.putAttribute(flowFile, ATTRIBUTE_TRANSFER_CHUNKS, String.valueOf(transfer.getChunkCount()));
+                        session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+                        continue;
+                    }
+
+                    InputStream data_stream = session.read(flowFile);
+                    try {
+                        sendMailMessage(
+                                // smtp connection of the batch
+                                batch,
+                                // message data
+                                template, null, filename, data_stream,
+                                Collections.emptyMap(), compress
+                        );
+                    } finally {
+                        data_stream.close();
+                    }
+
+                    // Mail could be sent.
+                    session.transfer(flowFile, RELATIONSHIP_SUCCESS);
+                } catch (RuntimeException ex) {
+                    // Something went wrong with sending the mail...
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, RELATIONSHIP_FAILURE);
+                } catch (IOException ex) {
+                    // Something went wrong with sending the mail...
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, RELATIONSHIP_FAILURE);
+                }
+            }
+        }
+
+    }
+
+    private static ChunkedTransfer sendChunkedMailMessages(final ProcessSession session, final FlowFile flowFile,
+                                                           final SMTPTransportPool.Batch batch, final long chunk_size,
+                                                           final MailTemplate template,
+                                                           final String filename, final boolean compress) throws IOException {
+        // first pass over the content: checksums of every chunk and of the whole flow file
+        ChunkedTransfer transfer;
+        try (InputStream data_stream = session.read(flowFile)) {
+            transfer = ChunkedTransfer.plan(UUID.randomUUID().toString(), data_stream, chunk_size);
+        }
+
+        // second pass: every chunk is streamed into its own mail, the subject keeps the tag for the receiver's filter
+        // Each chunk is compressed on its own, the checksums refer to the uncompressed content.
+        int chunk_count = transfer.getChunkCount();
+        try (InputStream data_stream = session.read(flowFile)) {
+            for (int i = 0; i < chunk_count; i++) {
                 sendMailMessage(
-                        // server smtp settings
-                        auth_username, auth_password, smtp_host, smtp_port, allow_insecure_tls,
-                        // message data
-                        mail_from, mail_to_list, mail_subject, mail_text, filename, data_stream
+                        batch,
+                        template, " (" + (i + 1) + "/" + chunk_count + ")",
+                        filename, transfer.getChunk(data_stream, i), transfer.getHeaders(i), compress
                 );
-            } finally {
-                data_stream.close();
             }
+        }
+        return transfer;
+    }
+
+    static class BatchFlowFileFilter implements FlowFileFilter {
+        private final int max_flow_files;
+        private final long max_bytes;
+        private int flow_files = 0;
+        private long bytes = 0;
 
-            // Mail could be sent.
-            session.transfer(flowFile, RELATIONSHIP_SUCCESS);
-        } catch (RuntimeException ex) {
-            // Something went wrong with sending the mail...
-            flowFile = session.penalize(flowFile);
-            session.transfer(flowFile, RELATIONSHIP_FAILURE);
-        } catch (IOException ex) {
-            // Something went wrong with sending the mail...
-            flowFile = session.penalize(flowFile);
-            session.transfer(flowFile, RELATIONSHIP_FAILURE);
+        BatchFlowFileFilter(int max_flow_files, long max_bytes) {
+            this.max_flow_files = max_flow_files;
+            this.max_bytes = max_bytes;
         }
 
-        session.commit();
+        @Override
+        public FlowFileFilterResult filter(FlowFile flowFile) {
+            // the first flow file is always taken, even if it exceeds the byte budget on its own
+            if (flow_files > 0 && bytes + flowFile.getSize() > max_bytes) {
+                return FlowFileFilterResult.REJECT_AND_TERMINATE;
+            }
+            flow_files++;
+            bytes += flowFile.getSize();
+            return flow_files >= max_flow_files ? FlowFileFilterResult.ACCEPT_AND_TERMINATE : FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+        }
     }
 }
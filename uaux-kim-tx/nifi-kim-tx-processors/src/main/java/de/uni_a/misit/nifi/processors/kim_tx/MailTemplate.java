@@ -0,0 +1,87 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.List;
+
+public class MailTemplate {
+    private final InternetAddress from;
+    private final InternetAddress[] recipients;
+    private final String subject;
+    private final String encoded_subject;
+    private final byte[] encoded_text_part;
+
+    public MailTemplate(String from, List<String> tos, String subject, String text) {
+        // The parts that are equal for every mail are parsed and encoded once. Invalid addresses are
+        // rejected here, the processor already refuses them during the validation of its properties.
+        try {
+            this.from = parseAddress(from);
+            this.recipients = new InternetAddress[tos.size()];
+            for (int i = 0; i < tos.size(); i++) {
+                this.recipients[i] = parseAddress(tos.get(i));
+            }
+            this.subject = subject;
+            this.encoded_subject = encodeSubject(subject);
+
+            // the text part is kept in its transfer encoded form, every mail parses its own copy of it
+            MimeBodyPart text_part = new MimeBodyPart();
+            text_part.setText(text == null ? "" : text);
+            text_part.setHeader("Content-Transfer-Encoding", MimeUtility.getEncoding(text_part.getDataHandler()));
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            text_part.writeTo(os);
+            this.encoded_text_part = os.toByteArray();
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static InternetAddress parseAddress(String address) throws AddressException {
+        return new InternetAddress(address.trim());
+    }
+
+    public MimeMessage newMessage(Session session, String subject_suffix) throws MessagingException {
+        // only the date is set per mail, the message id is assigned when the mail is sent
+        MimeMessage msg = new MimeMessage(session);
+        msg.setFrom(from);
+        msg.setRecipients(Message.RecipientType.TO, recipients);
+        if (subject_suffix == null || subject_suffix.isEmpty()) {
+            msg.setHeader("Subject", encoded_subject);
+        } else {
+            msg.setHeader("Subject", encodeSubject(subject + subject_suffix));
+        }
+        msg.setSentDate(new Date());
+        return msg;
+    }
+
+    public Multipart newMultipart() throws MessagingException {
+        // the shared bytes are never modified, so the template can be used by several threads
+        Multipart multipart = new MimeMultipart();
+        multipart.addBodyPart(new MimeBodyPart(new ByteArrayInputStream(encoded_text_part)));
+        return multipart;
+    }
+
+    private static String encodeSubject(String subject) throws MessagingException {
+        // same encoding as MimeMessage.setSubject
+        try {
+            return MimeUtility.fold(9, MimeUtility.encodeText(subject, null, null));
+        } catch (UnsupportedEncodingException e) {
+            throw new MessagingException("Encoding error", e);
+        }
+    }
+}
@@ -3,85 +3,69 @@ package de.uni_a.misit.nifi.processors.kim_tx;
 import jakarta.activation.DataHandler;
 import jakarta.mail.*;
 import jakarta.mail.internet.*;
-import jakarta.mail.util.ByteArrayDataSource;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Properties;
+import java.util.Map;
 
 public class SMTPMailUtil {
+    // marks the codec of a compressed attachment, the receiver decompresses it transparently
+    public static final String HEADER_CONTENT_CODEC = "X-KIM-Content-Codec";
+    public static final String CODEC_GZIP = "gzip";
+
     public static void sendMailMessage(
-            String auth_username, String auth_password, String server_host, int server_port, boolean allow_insecure_tls,
-            String from, List<String> tos, String subject, String text, String attachment_filename, InputStream attachment_content) {
+            SMTPTransportPool.Batch batch,
+            MailTemplate template, String subject_suffix, String attachment_filename, InputStream attachment_content,
+            Map<String, String> headers, boolean compress) {
+        // compressed while it is read, the compressing stream is closed even if the send is aborted
+        InputStream content = compress ? new GzipCompressingInputStream(attachment_content) : attachment_content;
         try {
-            // create smtp session first
-            Properties prop = new Properties();
-            // setup smtp settings
-            prop.setProperty("mail.smtp.auth", "true");
-            prop.setProperty("mail.smtp.ssl.enable", "true");
-            prop.setProperty("mail.smtp.host", server_host);
-            prop.setProperty("mail.smtp.port", String.valueOf(server_port));
-
-            // set additional flag
-            if (allow_insecure_tls) {
-                prop.setProperty("mail.smtp.ssl.trust", "*");
+            // all mails of a batch share a single connection
+            MimeMessage msg = buildMailMessage(batch.getSession(), template, subject_suffix, attachment_filename, content, compress);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                msg.setHeader(header.getKey(), header.getValue());
             }
-
-            // create session with username / password
-            Session session = Session.getInstance(prop, new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(auth_username, auth_password);
-                }
-            });
-
-            // build mail message
-            MimeMessage msg = new MimeMessage(session);
-
-            // parse receiver addresses
-            List<InternetAddress> to_addresses = new LinkedList<InternetAddress>();
-            for (String to: tos) {
+            batch.send(msg);
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (compress) {
                 try {
-                    to_addresses.add(new InternetAddress(to));
-                } catch (AddressException ex) { }
+                    content.close();
+                } catch (IOException ignored) {}
             }
-            InternetAddress[] addresses = to_addresses.toArray(new InternetAddress[0]);
-
-            // set mail properties
-            msg.setFrom(new InternetAddress(from));
-            msg.setRecipients(Message.RecipientType.TO, addresses);
-            msg.setSubject(subject);
-            msg.setSentDate(new Date());
+        }
+    }
 
-            // encode text line
-            MimeBodyPart message = new MimeBodyPart();
-            message.setText(text);
+    static MimeMessage buildMailMessage(
+            Session session,
+            MailTemplate template, String subject_suffix, String attachment_filename, InputStream attachment_content,
+            boolean compressed)
+            throws MessagingException, IOException {
+        // addresses, subject and text are taken from the template
+        MimeMessage msg = template.newMessage(session, subject_suffix);
 
-            // add attachment
-            MimeBodyPart attachment = new MimeBodyPart();
-            attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment_content, "application/octet-stream")));
+        // add attachment, the content is streamed and base64 encoded while the mail is sent
+        MimeBodyPart attachment = new MimeBodyPart();
+        if (compressed) {
+            // The content is gzip compressed already. The content type stays octet-stream, which receivers
+            // look for, and the .gz suffix keeps the file usable for receivers unaware of the codec.
+            String compressed_filename = (attachment_filename == null ? "data.bin" : attachment_filename) + ".gz";
+            attachment.setDataHandler(new DataHandler(new StreamingDataSource(attachment_content, "application/octet-stream", compressed_filename)));
+            attachment.setFileName(MimeUtility.encodeText(compressed_filename));
+            attachment.setHeader(HEADER_CONTENT_CODEC, CODEC_GZIP);
+        } else {
+            attachment.setDataHandler(new DataHandler(new StreamingDataSource(attachment_content, "application/octet-stream", attachment_filename)));
             attachment.setFileName(MimeUtility.encodeText(attachment_filename));
-
-            // assemble bodyparts
-            Multipart multipart = new MimeMultipart();
-            multipart.addBodyPart(message);
-            multipart.addBodyPart(attachment);
-            msg.setContent(multipart);
-
-            // finally send the message
-            Transport.send(msg);
-        } catch (AddressException e) {
-            throw new RuntimeException(e);
-        } catch (MessagingException e) {
-            throw new RuntimeException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
+        attachment.setHeader("Content-Transfer-Encoding", "base64");
+
+        // assemble bodyparts
+        Multipart multipart = template.newMultipart();
+        multipart.addBodyPart(attachment);
+        msg.setContent(multipart);
+        return msg;
     }
 }
@@ -0,0 +1,250 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import jakarta.mail.Authenticator;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+import org.eclipse.angus.mail.util.MailSSLSocketFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class SMTPTransportPool {
+    private final Session session;
+    private final int max_idle;
+    private final long max_age_millis;
+    private final long keepalive_millis;
+
+    // connected and authenticated transports, the most recently used one first
+    private final Deque<PooledTransport> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService keepalive;
+    private boolean closed = false;
+
+    private static class PooledTransport {
+        private final SMTPTransport transport;
+        private final long created;
+        private long last_used;
+
+        private PooledTransport(SMTPTransport transport) {
+            this.transport = transport;
+            this.created = System.currentTimeMillis();
+            this.last_used = created;
+        }
+    }
+
+    public SMTPTransportPool(String host, int port, String auth_username, String auth_password, boolean allow_insecure_tls,
+                             int max_idle, long max_age_millis, long keepalive_millis) {
+        this.max_idle = max_idle;
+        this.max_age_millis = max_age_millis;
+        this.keepalive_millis = keepalive_millis;
+
+        Properties prop = new Properties();
+        // setup smtp settings
+        prop.setProperty("mail.smtp.auth", "true");
+        prop.setProperty("mail.smtp.ssl.enable", "true");
+        prop.setProperty("mail.smtp.host", host);
+        prop.setProperty("mail.smtp.port", String.valueOf(port));
+
+        // set additional flag
+        if (allow_insecure_tls) {
+            prop.setProperty("mail.smtp.ssl.trust", "*");
+        }
+
+        // A single socket factory keeps a single TLS session cache, so new connections can resume the TLS session
+        // instead of performing a full handshake.
+        try {
+            MailSSLSocketFactory socket_factory = new MailSSLSocketFactory();
+            socket_factory.setTrustAllHosts(allow_insecure_tls);
+            prop.put("mail.smtp.ssl.socketFactory", socket_factory);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+
+        // a dedicated session, getDefaultInstance would ignore changed properties after the first call
+        this.session = Session.getInstance(prop, new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(auth_username, auth_password);
+            }
+        });
+
+        // idle connections are kept alive with NOOP, so the server does not drop them between two bursts
+        this.keepalive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "KIM TX SMTP keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.keepalive.scheduleWithFixedDelay(this::keepAlive, keepalive_millis, keepalive_millis, TimeUnit.MILLISECONDS);
+    }
+
+    public Session getSession() {
+        // messages are built with the session of the pool, so they share its mail.mime settings
+        return session;
+    }
+
+    public Batch openBatch() {
+        // the connection is only taken from the pool with the first mail of the batch
+        return new Batch();
+    }
+
+    public class Batch implements AutoCloseable {
+        private PooledTransport pooled = null;
+
+        private Batch() {}
+
+        public Session getSession() {
+            return session;
+        }
+
+        public void send(Message msg) throws MessagingException {
+            // Transport.send does this implicitly, sendMessage expects the headers to be updated already
+            msg.saveChanges();
+
+            if (pooled == null) pooled = borrow();
+            try {
+                // a single MAIL FROM / RCPT TO / DATA transaction on an authenticated connection
+                pooled.transport.sendMessage(msg, msg.getAllRecipients());
+                pooled.last_used = System.currentTimeMillis();
+            } catch (MessagingException e) {
+                // rejected mails leave the connection usable, RSET discards what is left of the transaction;
+                // otherwise the next mail of the batch is sent on a new connection
+                if (!reset(pooled)) {
+                    release(pooled, false);
+                    pooled = null;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (pooled != null) {
+                release(pooled, true);
+                pooled = null;
+            }
+        }
+    }
+
+    public void close() {
+        List<PooledTransport> closing;
+        synchronized (this) {
+            closed = true;
+            keepalive.shutdownNow();
+            closing = new ArrayList<>(idle);
+            idle.clear();
+        }
+        closing.forEach(SMTPTransportPool::discard);
+    }
+
+    private PooledTransport borrow() throws MessagingException {
+        // Only taking a transport from the pool is done under the lock. The health check and QUIT are network
+        // round trips, they must not block the other senders.
+        while (true) {
+            PooledTransport pooled;
+            synchronized (this) {
+                if (closed) throw new MessagingException("SMTP transport pool is closed");
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) break;
+
+            long now = System.currentTimeMillis();
+            if (now - pooled.created > max_age_millis) {
+                // renew long-lived connections, servers limit the duration and number of mails per session
+                discard(pooled);
+            } else if (now - pooled.last_used > keepalive_millis && !pooled.transport.isConnected()) {
+                // health check: the SMTP transport sends a NOOP and reports false on failures
+                discard(pooled);
+            } else {
+                return pooled;
+            }
+        }
+
+        // connect outside of the lock, the TLS handshake and AUTH must not block the other senders
+        return new PooledTransport(connect());
+    }
+
+    SMTPTransport connect() throws MessagingException {
+        SMTPTransport transport = (SMTPTransport) session.getTransport("smtp");
+        transport.connect();
+        return transport;
+    }
+
+    private void release(PooledTransport pooled, boolean reusable) {
+        pooled.last_used = System.currentTimeMillis();
+        synchronized (this) {
+            if (reusable && !closed && idle.size() < max_idle) {
+                idle.addFirst(pooled);
+                return;
+            }
+        }
+        discard(pooled);
+    }
+
+    private void keepAlive() {
+        // The transports due for a NOOP are taken out of the pool, so no sender uses them meanwhile.
+        // The NOOPs are sent without holding the lock, a slow server must not stall borrow and release.
+        List<PooledTransport> checked = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<PooledTransport> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledTransport pooled = iterator.next();
+                if (now - pooled.created > max_age_millis || now - pooled.last_used < keepalive_millis) {
+                    // expired connections are dropped on the next borrow, recently used ones need no NOOP
+                    continue;
+                }
+                iterator.remove();
+                checked.add(pooled);
+            }
+        }
+
+        List<PooledTransport> alive = new ArrayList<>();
+        for (PooledTransport pooled : checked) {
+            if (pooled.transport.isConnected()) {
+                pooled.last_used = System.currentTimeMillis();
+                alive.add(pooled);
+            } else {
+                discard(pooled);
+            }
+        }
+
+        // the checked transports were idle the longest, so they are returned behind the others
+        List<PooledTransport> surplus = new ArrayList<>();
+        synchronized (this) {
+            for (PooledTransport pooled : alive) {
+                if (!closed && idle.size() < max_idle) {
+                    idle.addLast(pooled);
+                } else {
+                    surplus.add(pooled);
+                }
+            }
+        }
+        surplus.forEach(SMTPTransportPool::discard);
+    }
+
+    private static boolean reset(PooledTransport pooled) {
+        try {
+            if (!pooled.transport.isConnected()) return false;
+            pooled.transport.issueCommand("RSET", 250);
+            return true;
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    private static void discard(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException ignored) {}
+    }
+}
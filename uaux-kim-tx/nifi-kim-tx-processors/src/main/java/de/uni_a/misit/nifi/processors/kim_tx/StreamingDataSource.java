@@ -0,0 +1,52 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import jakarta.activation.DataSource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class StreamingDataSource implements DataSource {
+    private final InputStream content;
+    private final String content_type;
+    private final String name;
+    private boolean consumed = false;
+
+    public StreamingDataSource(InputStream content, String content_type, String name) {
+        this.content = content;
+        this.content_type = content_type;
+        this.name = name;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        // The content is read once, while the mail is written into the DATA stream. Nothing is buffered, so the
+        // Content-Transfer-Encoding has to be set explicitly or Jakarta Mail would read the content to choose one.
+        if (consumed) {
+            throw new IOException("The attachment content of " + name + " can only be read once");
+        }
+        consumed = true;
+
+        // closing is left to the owner of the stream
+        return new FilterInputStream(content) {
+            @Override
+            public void close() {}
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("The attachment content is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return content_type;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,57 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncSendExecutorTest {
+
+    @Test
+    public void testReleasePermitAfterSend() throws Exception {
+        AsyncSendExecutor executor = new AsyncSendExecutor(1);
+        try {
+            CountDownLatch hold = new CountDownLatch(1);
+            CountDownLatch sent = new CountDownLatch(1);
+            assertTrue(executor.tryAcquire());
+            executor.submit(() -> {
+                try {
+                    hold.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sent.countDown();
+            });
+
+            // the permit is held until the send completed
+            assertFalse(executor.tryAcquire());
+            hold.countDown();
+            assertTrue(sent.await(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            boolean acquired = false;
+            while (!acquired && System.currentTimeMillis() < deadline) {
+                acquired = executor.tryAcquire();
+                if (!acquired) Thread.sleep(10);
+            }
+            assertTrue(acquired);
+        } finally {
+            executor.shutdown(10000);
+        }
+    }
+
+    @Test
+    public void testReleasePermitOfRejectedSend() {
+        AsyncSendExecutor executor = new AsyncSendExecutor(1);
+        executor.shutdown(10000);
+
+        // the processor is being stopped, the permit taken for the send is returned
+        assertTrue(executor.tryAcquire());
+        assertThrows(RejectedExecutionException.class, () -> executor.submit(() -> {}));
+        assertTrue(executor.tryAcquire());
+    }
+}
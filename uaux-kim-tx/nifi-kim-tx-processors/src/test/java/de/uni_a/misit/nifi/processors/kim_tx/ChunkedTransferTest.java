@@ -0,0 +1,73 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ChunkedTransferTest {
+
+    @Test
+    public void testSplitAtChunkSize() throws Exception {
+        // the content is an exact multiple of the chunk size, no empty chunk follows
+        byte[] content = "first chunk|second chunk".getBytes(StandardCharsets.US_ASCII);
+        ChunkedTransfer transfer = ChunkedTransfer.plan("transfer-1", new ByteArrayInputStream(content), 12);
+
+        assertEquals(2, transfer.getChunkCount());
+        assertChunks(transfer, content, new String[]{"first chunk|", "second chunk"});
+    }
+
+    @Test
+    public void testSplitWithShortLastChunk() throws Exception {
+        byte[] content = "first chunk|second chunk|rest".getBytes(StandardCharsets.US_ASCII);
+        ChunkedTransfer transfer = ChunkedTransfer.plan("transfer-1", new ByteArrayInputStream(content), 12);
+
+        assertEquals(3, transfer.getChunkCount());
+        assertChunks(transfer, content, new String[]{"first chunk|", "second chunk", "|rest"});
+    }
+
+    @Test
+    public void testEmptyContentIsOneChunk() throws Exception {
+        byte[] content = new byte[0];
+        ChunkedTransfer transfer = ChunkedTransfer.plan("transfer-1", new ByteArrayInputStream(content), 12);
+
+        assertEquals(1, transfer.getChunkCount());
+        assertChunks(transfer, content, new String[]{""});
+    }
+
+    private static void assertChunks(ChunkedTransfer transfer, byte[] content, String[] expected) throws Exception {
+        // the chunks are read from a second pass over the content, as the receiver verifies them
+        InputStream second_pass = new ByteArrayInputStream(content);
+        for (int i = 0; i < expected.length; i++) {
+            byte[] chunk;
+            try (InputStream is = transfer.getChunk(second_pass, i)) {
+                chunk = is.readAllBytes();
+            }
+            assertArrayEquals(expected[i].getBytes(StandardCharsets.US_ASCII), chunk);
+
+            Map<String, String> headers = transfer.getHeaders(i);
+            assertEquals("transfer-1", headers.get(ChunkedTransfer.HEADER_TRANSFER_ID));
+            assertEquals(String.valueOf(i), headers.get(ChunkedTransfer.HEADER_CHUNK_SEQUENCE));
+            assertEquals(String.valueOf(expected.length), headers.get(ChunkedTransfer.HEADER_CHUNK_COUNT));
+            assertEquals(String.valueOf(content.length), headers.get(ChunkedTransfer.HEADER_TRANSFER_SIZE));
+            assertEquals(sha256(chunk), headers.get(ChunkedTransfer.HEADER_CHUNK_SHA256));
+            assertEquals(sha256(content), headers.get(ChunkedTransfer.HEADER_TRANSFER_SHA256));
+        }
+        assertEquals(-1, second_pass.read());
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
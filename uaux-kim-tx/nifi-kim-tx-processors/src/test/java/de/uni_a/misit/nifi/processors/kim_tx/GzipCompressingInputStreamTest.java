@@ -0,0 +1,60 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class GzipCompressingInputStreamTest {
+
+    @Test
+    public void testDecompressWithGzipInputStream() throws Exception {
+        // random bytes do not compress, the pattern does, both span several deflate buffers
+        byte[] content = new byte[256 * 1024];
+        new Random(42).nextBytes(content);
+        for (int i = 0; i < content.length / 2; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        assertArrayEquals(content, roundTrip(content));
+    }
+
+    @Test
+    public void testDecompressEmptyContent() throws Exception {
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+    }
+
+    @Test
+    public void testCloseKeepsContentOpen() throws Exception {
+        // an aborted send closes the compressing stream, the content belongs to the flow file
+        boolean[] closed = {false};
+        InputStream content = new ByteArrayInputStream(new byte[128 * 1024]) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        InputStream compressed = new GzipCompressingInputStream(content);
+        compressed.read(new byte[16]);
+        compressed.close();
+        assertFalse(closed[0]);
+    }
+
+    private static byte[] roundTrip(byte[] content) throws Exception {
+        byte[] compressed;
+        try (InputStream is = new GzipCompressingInputStream(new ByteArrayInputStream(content))) {
+            compressed = is.readAllBytes();
+        }
+        // the JDK verifies the header and the CRC32 and size of the trailer
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] decompressed = is.readAllBytes();
+            assertEquals(-1, is.read());
+            return decompressed;
+        }
+    }
+}
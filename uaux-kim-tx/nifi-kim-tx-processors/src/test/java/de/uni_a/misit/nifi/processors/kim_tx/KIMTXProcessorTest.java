@@ -16,11 +16,32 @@
  */
 package de.uni_a.misit.nifi.processors.kim_tx;
 
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.FlowFileFilter.FlowFileFilterResult;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.util.MockProcessContext;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class KIMTXProcessorTest {
 
@@ -36,4 +57,139 @@ public class KIMTXProcessorTest {
 
     }
 
+    @Test
+    public void testBatchEndsAtFlowFileLimit() {
+        KIMTXProcessor.BatchFlowFileFilter filter = new KIMTXProcessor.BatchFlowFileFilter(3, Long.MAX_VALUE);
+        assertEquals(FlowFileFilterResult.ACCEPT_AND_CONTINUE, filter.filter(flowFile(10)));
+        assertEquals(FlowFileFilterResult.ACCEPT_AND_CONTINUE, filter.filter(flowFile(10)));
+        assertEquals(FlowFileFilterResult.ACCEPT_AND_TERMINATE, filter.filter(flowFile(10)));
+    }
+
+    @Test
+    public void testBatchEndsAtSizeLimit() {
+        // the flow file that would exceed the limit is left for the next batch
+        KIMTXProcessor.BatchFlowFileFilter filter = new KIMTXProcessor.BatchFlowFileFilter(10, 25);
+        assertEquals(FlowFileFilterResult.ACCEPT_AND_CONTINUE, filter.filter(flowFile(10)));
+        assertEquals(FlowFileFilterResult.ACCEPT_AND_CONTINUE, filter.filter(flowFile(15)));
+        assertEquals(FlowFileFilterResult.REJECT_AND_TERMINATE, filter.filter(flowFile(1)));
+
+        // a single flow file above the limit is still sent, as a batch of its own
+        KIMTXProcessor.BatchFlowFileFilter large = new KIMTXProcessor.BatchFlowFileFilter(10, 25);
+        assertEquals(FlowFileFilterResult.ACCEPT_AND_CONTINUE, large.filter(flowFile(100)));
+        assertEquals(FlowFileFilterResult.REJECT_AND_TERMINATE, large.filter(flowFile(1)));
+    }
+
+    @Test
+    public void testAsyncSendYieldsWhileSendsAreInFlight() throws Exception {
+        ScriptedProcessor processor = new ScriptedProcessor();
+        TestRunner runner = asyncTestRunner(processor);
+        runner.enqueue("first");
+        runner.enqueue("second");
+
+        // the triggers are invoked directly, so the sends in flight are observed between them
+        ProcessContext context = runner.getProcessContext();
+        ProcessSessionFactory session_factory = runner.getProcessSessionFactory();
+        processor.hold = new CountDownLatch(1);
+        processor.onScheduled(context);
+        processor.onTrigger(context, session_factory);
+        assertTrue(processor.sending.await(10, TimeUnit.SECONDS));
+
+        // the only send permit is taken, the second flow file stays queued
+        processor.onTrigger(context, session_factory);
+        assertTrue(((MockProcessContext) context).isYieldCalled());
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        assertTrue(runner.getFlowFilesForRelationship(KIMTXProcessor.RELATIONSHIP_SUCCESS).isEmpty());
+
+        // stopping waits for the send in flight, the worker commits it before the connections are closed
+        processor.hold.countDown();
+        processor.onStopped();
+        runner.assertTransferCount(KIMTXProcessor.RELATIONSHIP_SUCCESS, 1);
+        assertEquals(Arrays.asList("send", "close"), processor.events);
+    }
+
+    @Test
+    public void testAsyncSendRollsBackFailedBatch() throws Exception {
+        ScriptedProcessor processor = new ScriptedProcessor();
+        TestRunner runner = asyncTestRunner(processor);
+        runner.enqueue("first");
+
+        // an unexpected error ends the batch, the worker queues its flow files again
+        processor.failure = new Error("content repository unavailable");
+        ProcessContext context = runner.getProcessContext();
+        processor.onScheduled(context);
+        processor.onTrigger(context, runner.getProcessSessionFactory());
+        processor.onStopped();
+
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        assertTrue(runner.getFlowFilesForRelationship(KIMTXProcessor.RELATIONSHIP_SUCCESS).isEmpty());
+        assertTrue(runner.getFlowFilesForRelationship(KIMTXProcessor.RELATIONSHIP_FAILURE).isEmpty());
+        assertFalse(processor.events.contains("send"));
+    }
+
+    private static TestRunner asyncTestRunner(ScriptedProcessor processor) {
+        TestRunner runner = TestRunners.newTestRunner(processor);
+        runner.setProperty(KIMTXProcessor.KIMTX_MAIL_TO_LIST, "klinik.test@kim.telematik");
+        runner.setProperty(KIMTXProcessor.KIMTX_MAIL_FROM, "praxis.test@kim.telematik");
+        runner.setProperty(KIMTXProcessor.KIMTX_SMTP_SERVER_AUTH_USERNAME, "praxis.test@kim.telematik");
+        runner.setProperty(KIMTXProcessor.KIMTX_SMTP_SERVER_AUTH_PASSWORD, "secret");
+        runner.setProperty(KIMTXProcessor.KIMTX_ASYNC_SEND, "true");
+        runner.setProperty(KIMTXProcessor.KIMTX_MAX_IN_FLIGHT_SENDS, "1");
+        return runner;
+    }
+
+    private static FlowFile flowFile(long size) {
+        // the filter only looks at the size of the flow files
+        return (FlowFile) Proxy.newProxyInstance(FlowFile.class.getClassLoader(), new Class<?>[]{FlowFile.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getSize")) return size;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    static class ScriptedProcessor extends KIMTXProcessor {
+        // the mails are sent to a transport that only records them, the SMTP server is never contacted
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch sending = new CountDownLatch(1);
+        volatile CountDownLatch hold = null;
+        volatile Error failure = null;
+
+        @Override
+        SMTPTransportPool createTransportPool(final ProcessContext context) {
+            return new SMTPTransportPool("localhost", 465, "praxis.test@kim.telematik", "secret", false, 1, 60000, 60000) {
+                @Override
+                SMTPTransport connect() {
+                    return new ScriptedTransport(getSession());
+                }
+            };
+        }
+
+        class ScriptedTransport extends SMTPTransport {
+            ScriptedTransport(Session session) {
+                super(session, new URLName("smtp://localhost"));
+            }
+
+            @Override
+            public void sendMessage(Message msg, Address[] addresses) {
+                sending.countDown();
+                if (failure != null) throw failure;
+                try {
+                    if (hold != null) hold.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("send");
+            }
+
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+                events.add("close");
+            }
+        }
+    }
+
 }
@@ -0,0 +1,75 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import jakarta.mail.Message;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SMTPMailUtilTest {
+
+    @Test
+    public void testStreamAttachment() throws Exception {
+        byte[] content = new byte[256 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+
+        Session session = Session.getInstance(new Properties());
+        MailTemplate template = new MailTemplate("praxis.test@kim.telematik", List.of("klinik.test@kim.telematik"),
+                "KIM TX [KIM_DEMO_TAG]", "Dies ist eine automatisch generierte E-Mail.");
+        MimeMessage msg = SMTPMailUtil.buildMailMessage(session, template, null, "data.bin", new ByteArrayInputStream(content), false);
+
+        // the headers are updated without reading the content, it is only read once when the mail is written
+        msg.saveChanges();
+        ByteArrayOutputStream raw_mail = new ByteArrayOutputStream();
+        msg.writeTo(raw_mail);
+
+        MimeMessage received = new MimeMessage(session, new ByteArrayInputStream(raw_mail.toByteArray()));
+        MimeBodyPart attachment = (MimeBodyPart) ((Multipart) received.getContent()).getBodyPart(1);
+        assertEquals("data.bin", attachment.getFileName());
+        assertEquals("base64", attachment.getEncoding());
+        try (InputStream is = attachment.getInputStream()) {
+            assertArrayEquals(content, is.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testReuseMailTemplate() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        MailTemplate template = new MailTemplate("praxis.test@kim.telematik", List.of("klinik.test@kim.telematik", " labor.test@kim.telematik"),
+                "KIM TX [KIM_DEMO_TAG]", "Dies ist eine automatisch generierte E-Mail. Gr\u00fc\u00dfe");
+
+        // every mail gets its own copy of the encoded text part
+        for (String suffix : new String[]{null, " (2/2)"}) {
+            MimeMessage msg = SMTPMailUtil.buildMailMessage(session, template, suffix, "data.bin", new ByteArrayInputStream(new byte[]{1, 2, 3}), false);
+            msg.saveChanges();
+            ByteArrayOutputStream raw_mail = new ByteArrayOutputStream();
+            msg.writeTo(raw_mail);
+
+            MimeMessage received = new MimeMessage(session, new ByteArrayInputStream(raw_mail.toByteArray()));
+            assertEquals(suffix == null ? "KIM TX [KIM_DEMO_TAG]" : "KIM TX [KIM_DEMO_TAG] (2/2)", received.getSubject());
+            assertEquals(2, received.getRecipients(Message.RecipientType.TO).length);
+            MimeBodyPart text = (MimeBodyPart) ((Multipart) received.getContent()).getBodyPart(0);
+            assertEquals("Dies ist eine automatisch generierte E-Mail. Gr\u00fc\u00dfe", text.getContent());
+        }
+    }
+
+    @Test
+    public void testRejectInvalidRecipient() {
+        // invalid receivers are not dropped silently
+        assertThrows(RuntimeException.class, () -> new MailTemplate("praxis.test@kim.telematik", List.of("klinik.test@kim.telematik", "klinik test@"),
+                "KIM TX [KIM_DEMO_TAG]", "Dies ist eine automatisch generierte E-Mail."));
+    }
+}
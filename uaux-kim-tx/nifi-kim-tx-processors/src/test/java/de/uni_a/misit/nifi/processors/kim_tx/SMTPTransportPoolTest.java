@@ -0,0 +1,208 @@
+package de.uni_a.misit.nifi.processors.kim_tx;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SMTPTransportPoolTest {
+
+    @Test
+    public void testReconnectAfterFailedTransaction() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        try {
+            MimeMessage first = mail(pool), second = mail(pool), third = mail(pool);
+            try (SMTPTransportPool.Batch batch = pool.openBatch()) {
+                batch.send(first);
+
+                // the connection breaks during the second mail, the batch continues on a new connection
+                RecordingTransport broken = pool.transports.get(0);
+                broken.fail(new MessagingException("connection reset"), true);
+                assertThrows(MessagingException.class, () -> batch.send(second));
+                assertTrue(broken.closed);
+                batch.send(third);
+            }
+
+            assertEquals(2, pool.transports.size());
+            assertEquals(Collections.singletonList(first), pool.transports.get(0).sent);
+            assertEquals(Collections.singletonList(third), pool.transports.get(1).sent);
+
+            // the new connection went back to the pool and is borrowed by the next batch
+            MimeMessage fourth = mail(pool);
+            try (SMTPTransportPool.Batch batch = pool.openBatch()) {
+                batch.send(fourth);
+            }
+            assertEquals(2, pool.transports.size());
+            assertEquals(Arrays.asList(third, fourth), pool.transports.get(1).sent);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testKeepConnectionAfterRejectedMail() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        try {
+            MimeMessage rejected = mail(pool), accepted = mail(pool);
+            try (SMTPTransportPool.Batch batch = pool.openBatch()) {
+                batch.send(mail(pool));
+
+                // the server rejects a recipient, the transaction is reset and the connection is kept
+                RecordingTransport transport = pool.transports.get(0);
+                transport.fail(new SendFailedException("recipient rejected"), false);
+                assertThrows(SendFailedException.class, () -> batch.send(rejected));
+                batch.send(accepted);
+
+                assertEquals(Collections.singletonList("RSET"), transport.commands);
+                assertFalse(transport.closed);
+            }
+            assertEquals(1, pool.transports.size());
+            assertEquals(accepted, pool.transports.get(0).sent.get(1));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testKeepAliveDoesNotBlockSenders() throws Exception {
+        RecordingPool pool = new RecordingPool(50);
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        try {
+            try (SMTPTransportPool.Batch batch = pool.openBatch()) {
+                batch.send(mail(pool));
+            }
+
+            // the NOOP of the idle connection hangs on a slow link
+            RecordingTransport idle = pool.transports.get(0);
+            idle.noop_started = new CountDownLatch(1);
+            idle.noop_release = new CountDownLatch(1);
+            assertTrue(idle.noop_started.await(10, TimeUnit.SECONDS));
+
+            // meanwhile a batch is sent on a new connection
+            MimeMessage msg = mail(pool);
+            sender.submit(() -> {
+                try (SMTPTransportPool.Batch batch = pool.openBatch()) {
+                    batch.send(msg);
+                }
+                return null;
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(2, pool.transports.size());
+            assertEquals(Collections.singletonList(msg), pool.transports.get(1).sent);
+
+            // the connection answered its NOOP, so it is kept
+            idle.noop_release.countDown();
+            assertFalse(idle.closed);
+        } finally {
+            sender.shutdownNow();
+            pool.close();
+        }
+    }
+
+    private static MimeMessage mail(SMTPTransportPool pool) throws MessagingException {
+        MimeMessage msg = new MimeMessage(pool.getSession());
+        msg.setFrom(new InternetAddress("praxis.test@kim.telematik"));
+        msg.setRecipient(Message.RecipientType.TO, new InternetAddress("klinik.test@kim.telematik"));
+        msg.setSubject("KIM TX [KIM_DEMO_TAG]");
+        msg.setText("Dies ist eine automatisch generierte E-Mail.");
+        return msg;
+    }
+
+    private static class RecordingPool extends SMTPTransportPool {
+        // every connection of the pool, in the order they were opened
+        private final List<RecordingTransport> transports = Collections.synchronizedList(new ArrayList<>());
+
+        private RecordingPool() {
+            this(60000);
+        }
+
+        private RecordingPool(long keepalive_millis) {
+            super("localhost", 465, "praxis.test@kim.telematik", "secret", false, 2, 60000, keepalive_millis);
+        }
+
+        @Override
+        SMTPTransport connect() {
+            RecordingTransport transport = new RecordingTransport(getSession());
+            transports.add(transport);
+            return transport;
+        }
+    }
+
+    private static class RecordingTransport extends SMTPTransport {
+        private final List<Message> sent = new ArrayList<>();
+        private final List<String> commands = new ArrayList<>();
+        private boolean connected = true;
+        private boolean closed = false;
+        private MessagingException failure = null;
+        private boolean disconnect_on_failure = false;
+        // if set, the health check waits until it is released
+        private volatile CountDownLatch noop_started = null;
+        private volatile CountDownLatch noop_release = null;
+
+        private RecordingTransport(Session session) {
+            super(session, new URLName("smtp://localhost"));
+        }
+
+        private void fail(MessagingException failure, boolean disconnect) {
+            // the next mail fails with the given exception
+            this.failure = failure;
+            this.disconnect_on_failure = disconnect;
+        }
+
+        @Override
+        public synchronized void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+            if (failure != null) {
+                MessagingException e = failure;
+                failure = null;
+                if (disconnect_on_failure) connected = false;
+                throw e;
+            }
+            sent.add(msg);
+        }
+
+        @Override
+        public boolean isConnected() {
+            if (noop_release != null) {
+                noop_started.countDown();
+                try {
+                    noop_release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                return connected;
+            }
+        }
+
+        @Override
+        public synchronized void issueCommand(String cmd, int expect) {
+            commands.add(cmd);
+        }
+
+        @Override
+        public synchronized void close() {
+            connected = false;
+            closed = true;
+        }
+    }
+}